@@ -20,6 +20,7 @@ import android.app.ListActivity;
 import android.content.Intent;
 import android.content.SharedPreferences;
 import android.database.Cursor;
+import android.os.AsyncTask;
 import android.os.Bundle;
 import android.preference.PreferenceManager;
 import android.util.Log;
@@ -31,23 +32,35 @@ import android.widget.ListView;
 import de.delusions.measure.activities.prefs.PrefItem;
 import de.delusions.measure.activities.prefs.UserPreferences;
 import de.delusions.measure.components.InputRecorder;
+import de.delusions.measure.database.PagedCursor;
 import de.delusions.measure.database.SqliteHelper;
 import de.delusions.measure.ment.MeasureType;
 import de.delusions.measure.ment.Measurement;
+import de.delusions.measure.ment.MeasurementException;
 
-public class MeasureActivity extends ListActivity implements SharedPreferences.OnSharedPreferenceChangeListener {
+public class MeasureActivity extends ListActivity implements SharedPreferences.OnSharedPreferenceChangeListener,
+        MeasureCursorAdapter.PageListener {
 
     public static final String TAG = "MeasureActivity";
     public static final int ACTIVITY_EDIT = 1;
     public static final int ACTIVITY_PREVIOUS_COMMENT = 2;
     public static final int RESULT_FAILURE = Activity.RESULT_FIRST_USER + 1;
+    /** rows loaded at once into the list */
+    public static final int PAGE_SIZE = 100;
     private InputRecorder recorder;
 
     private Button set;
     private MeasureType field;
 
     private SqliteHelper valuesDb;
-    private Cursor valuesCursor;
+    private PagedCursor valuesCursor;
+    private MeasureCursorAdapter valuesAdapter;
+    /** type and data version the shown cursor was loaded for */
+    private MeasureType loadedField;
+    private long loadedVersion;
+    /** the adapter keeps a copy of the preferences and has to be replaced */
+    private boolean preferencesChanged;
+    private ListLoadTask loading;
 
     /** Called when the activity is first created. */
     @Override
@@ -94,7 +107,6 @@ public class MeasureActivity extends ListActivity implements SharedPreferences.O
         switch (item.getItemId()) {
         case R.id.context_menu_delete:
             deleteEntry(info.id);
-            refreshListView();
             return true;
         case R.id.context_menu_previous_comment:
             startActivityForResult(PreviousCommentActivity.createIntent(this, info.id), ACTIVITY_PREVIOUS_COMMENT);
@@ -134,6 +146,10 @@ public class MeasureActivity extends ListActivity implements SharedPreferences.O
         final SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
         prefs.unregisterOnSharedPreferenceChangeListener(this);
 
+        if (this.loading != null) {
+            this.loading.discard();
+            this.loading = null;
+        }
         if (this.valuesCursor != null && !this.valuesCursor.isClosed()) {
             this.valuesCursor.close();
             this.valuesDb.close();
@@ -147,53 +163,214 @@ public class MeasureActivity extends ListActivity implements SharedPreferences.O
 
     private void createEntry() {
         Log.d(TAG, "creating new entry for " + this.recorder.getCurrent());
-        final SqliteHelper db = new SqliteHelper(this);
-        db.createMeasure(this.recorder.getCurrent());
+        final SqliteHelper db = SqliteHelper.getInstance(this);
+        db.createMeasure(this.recorder.getCurrent(), new SqliteHelper.WriteCallback<Long>() {
+
+            public void onWriteDone(final Long rowId) {
+                refreshListView();
+            }
+
+            public void onWriteFailed(final MeasurementException error) {
+                error.createToast(MeasureActivity.this, "createEntry");
+            }
+        });
         db.close();
-        refreshListView();
     }
 
     private void deleteEntry(final long rowId) {
-        final SqliteHelper db = new SqliteHelper(this);
-        db.deleteNote(rowId);
+        final SqliteHelper db = SqliteHelper.getInstance(this);
+        db.deleteNote(rowId, new SqliteHelper.WriteCallback<Boolean>() {
+
+            public void onWriteDone(final Boolean deleted) {
+                refreshListView();
+            }
+
+            public void onWriteFailed(final MeasurementException error) {
+                error.createToast(MeasureActivity.this, "deleteEntry");
+            }
+        });
         db.close();
     }
 
+    /**
+     * Loads the list in the background. Nothing is queried if the shown cursor is still current or the same load is
+     * already running.
+     * 
+     * @return true if a load was started
+     */
     public boolean refreshListView() {
-        if (this.valuesCursor != null && !this.valuesCursor.isClosed()) {
-            this.valuesCursor.close();
-            this.valuesDb.close();
+        final long version = SqliteHelper.getDataVersion();
+        if (this.loading != null) {
+            if (this.loading.field.equals(this.field) && this.loading.version == version && !this.preferencesChanged) {
+                Log.d(TAG, "refreshListView already loading");
+                return false;
+            }
+            this.loading.discard();
+        } else if (this.valuesCursor != null && this.field.equals(this.loadedField) && this.loadedVersion == version && !this.preferencesChanged) {
+            Log.d(TAG, "refreshListView unchanged");
+            return false;
         }
-        this.valuesDb = new SqliteHelper(this);
-        this.valuesCursor = this.valuesDb.fetchAll(this.field);
-        final MeasureCursorAdapter measures = new MeasureCursorAdapter(this, this.valuesCursor, this.field);
-        setListAdapter(measures);
-        refreshInputRecorder(this.valuesCursor.getCount() != 0);
+        this.loading = new ListLoadTask(this.field, version, null);
+        this.loading.execute();
         return true;
     }
 
-    private void refreshInputRecorder(final boolean entriesExist) {
-        final Measurement lastMeasure;
-        if (entriesExist) {
-            final SqliteHelper db = new SqliteHelper(this);
-            final Cursor lastCursor = db.fetchLast(this.field);
-            lastMeasure = this.field.createMeasurement(lastCursor);
-            lastCursor.close();
-            db.close();
+    /**
+     * Loads the page following the last loaded row, unless the list is complete or something is loading already.
+     */
+    public void onNextPageNeeded() {
+        if (this.loading != null || this.valuesCursor == null || this.valuesCursor.isComplete()) {
+            return;
+        }
+        final long[] key = this.valuesCursor.getNextPageKey();
+        if (key == null) {
+            return;
+        }
+        this.loading = new ListLoadTask(this.loadedField, this.loadedVersion, key);
+        this.loading.execute();
+    }
+
+    /**
+     * Replaces the shown cursor with a freshly loaded one. The adapter is kept as long as the type and preferences are the
+     * same, so the list keeps its scroll position.
+     */
+    private void showList(final ListLoadTask task, final Cursor firstPage) {
+        final Cursor oldCursor = this.valuesCursor;
+        final SqliteHelper oldDb = this.valuesDb;
+        this.valuesCursor = new PagedCursor(firstPage, PAGE_SIZE);
+        this.valuesDb = task.db;
+        if (this.valuesAdapter != null && task.field.equals(this.loadedField) && !this.preferencesChanged) {
+            this.valuesAdapter.changeCursor(this.valuesCursor);
         } else {
-            lastMeasure = new Measurement();
-            lastMeasure.setField(this.field);
+            this.valuesAdapter = new MeasureCursorAdapter(this, this.valuesCursor, task.field);
+            this.valuesAdapter.setPageListener(this);
+            setListAdapter(this.valuesAdapter);
+            if (oldCursor != null) {
+                oldCursor.close();
+            }
         }
+        if (oldDb != null) {
+            oldDb.close();
+        }
+        this.loadedField = task.field;
+        this.loadedVersion = task.version;
+        this.preferencesChanged = false;
+        refreshInputRecorder(task.last);
+    }
+
+    /**
+     * Appends a page if it still continues the shown list, the database reference of its task is not needed any longer.
+     */
+    private void showPage(final ListLoadTask task, final Cursor page) {
+        if (this.valuesCursor != null && task.field.equals(this.loadedField) && task.version == this.loadedVersion) {
+            this.valuesCursor.addPage(page);
+        } else {
+            page.close();
+        }
+        task.db.close();
+    }
+
+    private void refreshInputRecorder(final Measurement lastMeasure) {
         Log.d(TAG, "refreshInputRecorder " + lastMeasure);
         this.recorder.setCurrent(lastMeasure);
     }
 
+    /**
+     * Queries the first page of the list and the newest measure, which is its first row, or the page after a key. Whoever
+     * comes last of the query and {@link #discard()} closes the cursor and gives back the database reference of a
+     * discarded load.
+     */
+    private class ListLoadTask extends AsyncTask<Void, Void, Cursor> {
+
+        private final MeasureType field;
+        private final long version;
+        private final boolean firstPage;
+        /** date and id of the row the page follows */
+        private final long[] key;
+        private final SqliteHelper db;
+        private Measurement last;
+        private Cursor loaded;
+        private boolean finished;
+        private boolean discarded;
+
+        ListLoadTask(final MeasureType field, final long version, final long[] key) {
+            this.field = field;
+            this.version = version;
+            this.firstPage = key == null;
+            this.key = key;
+            this.db = SqliteHelper.getInstance(MeasureActivity.this);
+        }
+
+        @Override
+        protected Cursor doInBackground(final Void... params) {
+            final Cursor cursor;
+            if (this.firstPage) {
+                cursor = this.db.fetchPage(this.field, PAGE_SIZE);
+            } else {
+                cursor = this.db.fetchPage(this.field, this.key[0], this.key[1], PAGE_SIZE);
+            }
+            final Measurement newest;
+            if (!this.firstPage) {
+                cursor.getCount();
+                newest = null;
+            } else if (cursor.moveToFirst()) {
+                newest = this.field.createMeasurement(cursor);
+            } else {
+                newest = new Measurement();
+                newest.setField(this.field);
+            }
+            synchronized (this) {
+                this.finished = true;
+                if (this.discarded) {
+                    cursor.close();
+                    this.db.close();
+                    return null;
+                }
+                this.last = newest;
+                this.loaded = cursor;
+                return cursor;
+            }
+        }
+
+        @Override
+        protected void onPostExecute(final Cursor cursor) {
+            if (MeasureActivity.this.loading == this) {
+                MeasureActivity.this.loading = null;
+            }
+            if (cursor == null || this.discarded) {
+                return;
+            }
+            if (this.firstPage) {
+                showList(this, cursor);
+            } else {
+                showPage(this, cursor);
+            }
+        }
+
+        /**
+         * Drops the result, the task may still be running.
+         */
+        synchronized void discard() {
+            if (this.discarded) {
+                return;
+            }
+            this.discarded = true;
+            cancel(false);
+            if (this.finished) {
+                this.loaded.close();
+                this.db.close();
+            }
+        }
+    }
+
     public void onSharedPreferenceChanged(final SharedPreferences sharedPreferences, final String key) {
         if (key.equals(PrefItem.DISPLAY_MEASURE.getKey())) {
             Log.d(TAG, "onSharedPreferenceChanged " + key);
             this.field = UserPreferences.getDisplayField(this);
             setButtonText();
             refreshListView();
+        } else {
+            this.preferencesChanged = true;
         }
     }
 
@@ -15,14 +15,16 @@
  */
 package de.delusions.measure;
 
+import java.text.FieldPosition;
 import java.text.NumberFormat;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.Locale;
 
 import android.content.Context;
-import android.content.res.Resources;
 import android.database.Cursor;
+import android.os.Debug;
+import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
@@ -31,129 +33,210 @@ import android.widget.ImageView;
 import android.widget.TextView;
 import de.delusions.measure.R;
 import de.delusions.measure.activities.bmi.StatisticsFactory;
-import de.delusions.measure.activities.prefs.UserPreferences;
+import de.delusions.measure.activities.prefs.PreferenceSnapshot;
 import de.delusions.measure.database.SqliteHelper;
 import de.delusions.measure.ment.MeasureType;
 import de.delusions.measure.ment.Measurement;
+import de.delusions.measure.ment.Unit;
 
 public class MeasureCursorAdapter extends CursorAdapter {
 
+    private static final String TAG = MeasureCursorAdapter.class.getSimpleName();
+
     public static final String HOUR_MINUTE = "HH:mm";
     public static final String DAY_MONTH_YEAR = "dd/MM/yyyy";
 
-    // only ok because this app is not multithreaded!
-    public static final SimpleDateFormat TIME_AND_DATE_FORMAT = new SimpleDateFormat(String.format("%s, %s", HOUR_MINUTE, DAY_MONTH_YEAR));
-
-    public static final SimpleDateFormat TIME_FORMAT = new SimpleDateFormat(HOUR_MINUTE);
-    public static final SimpleDateFormat DATE_FORMAT = new SimpleDateFormat(DAY_MONTH_YEAR);
-
-    private final Measurement height;
-    private final Context ctx;
     private final MeasureType displayField;
     private final String labelText;
 
+    // preferences are taken once per adapter, the list is rebuilt when they change
+    private final PreferenceSnapshot preferences;
+    private final String unitName;
+
+    // reused for every row, bindView only runs on the main thread
+    private final NumberFormat numberFormat = NumberFormat.getInstance(Locale.ENGLISH);
+    private final SimpleDateFormat timeAndDateFormat = new SimpleDateFormat(HOUR_MINUTE + ", " + DAY_MONTH_YEAR);
+    private final StringBuffer buffer = new StringBuffer();
+    private final FieldPosition fieldPosition = new FieldPosition(0);
+    private final Date date = new Date();
+
+    /** rows before the end of the cursor at which the next page is requested */
+    private static final int PAGE_PREFETCH = 20;
+    private PageListener pageListener;
+
+    private Cursor columnsOf;
+    private int valueColumn;
+    private int dateColumn;
+    private int previousColumn;
+    private int commentColumn;
+
+    /**
+     * With debug logging the objects allocated by each bind are logged. Apart from the texts handed to the views and the
+     * comment read from the cursor nothing should be allocated.
+     */
+    private final boolean countAllocations = Log.isLoggable(TAG, Log.DEBUG);
+
+    /**
+     * Looked up once per row view instead of on every bind.
+     */
+    private static class ViewHolder {
+
+        TextView measure;
+        ImageView changeArrow;
+        TextView bmi;
+        View bmiLabel;
+        TextView date;
+        TextView comment;
+        View commentRow;
+    }
+
+    /**
+     * Informed when the list comes close to the end of the loaded rows.
+     */
+    public interface PageListener {
+
+        void onNextPageNeeded();
+    }
+
     public MeasureCursorAdapter(final Context context, final Cursor c, final MeasureType displayField) {
         super(context, c, false);
-        this.height = UserPreferences.getHeight(context);
-        this.ctx = context;
         this.displayField = displayField;
-        this.labelText = this.ctx.getResources().getString(displayField.getLabelId()) + ":";
+        this.labelText = context.getResources().getString(displayField.getLabelId()) + ":";
+        this.preferences = PreferenceSnapshot.get(context);
+        this.unitName = displayField.getUnit().retrieveUnitName(this.preferences.isMetric());
+        if (this.countAllocations) {
+            Debug.startAllocCounting();
+        }
+    }
+
+    public void setPageListener(final PageListener pageListener) {
+        this.pageListener = pageListener;
+    }
+
+    @Override
+    public View getView(final int position, final View convertView, final ViewGroup parent) {
+        if (this.pageListener != null && position >= getCount() - PAGE_PREFETCH) {
+            this.pageListener.onNextPageNeeded();
+        }
+        return super.getView(position, convertView, parent);
     }
 
     @Override
     public void bindView(final View view, final Context context, final Cursor cursor) {
-        final Measurement measurement = this.displayField.createMeasurement(cursor);
-        final String date = cursor.getString(cursor.getColumnIndex(SqliteHelper.KEY_DATE));
-        final float percent = calculatePercentChange(cursor, measurement);
-        displayMeasurement(view, measurement);
-        displayDate(view, date);
-        displayBMI(view, measurement);
-        displayPercentChange(view, percent);
-        displayComment(context, view, measurement);
+        if (!this.countAllocations) {
+            bindRow(view, cursor);
+            return;
+        }
+        final int before = Debug.getThreadAllocCount();
+        bindRow(view, cursor);
+        final int allocated = Debug.getThreadAllocCount() - before;
+        Log.d(TAG, "bindView allocated " + allocated + " objects");
+    }
+
+    private void bindRow(final View view, final Cursor cursor) {
+        final ViewHolder holder = (ViewHolder) view.getTag();
+        if (cursor != this.columnsOf) {
+            resolveColumns(cursor);
+        }
+        final float value = cursor.getFloat(this.valueColumn);
+        displayMeasurement(holder, value);
+        displayDate(holder, cursor.getLong(this.dateColumn));
+        displayBMI(holder, value);
+        displayPercentChange(holder, calculatePercentChange(cursor, value));
+        displayComment(holder, this.preferences.isCommentEnabled() ? cursor.getString(this.commentColumn) : null);
+    }
 
+    private void resolveColumns(final Cursor cursor) {
+        this.valueColumn = cursor.getColumnIndexOrThrow(SqliteHelper.KEY_MEASURE_VALUE);
+        this.dateColumn = cursor.getColumnIndexOrThrow(SqliteHelper.KEY_DATE);
+        this.previousColumn = cursor.getColumnIndex(SqliteHelper.KEY_PREVIOUS);
+        this.commentColumn = cursor.getColumnIndexOrThrow(SqliteHelper.KEY_COMMENT);
+        this.columnsOf = cursor;
     }
 
-    private float calculatePercentChange(final Cursor cursor, final Measurement measurement) {
+    /**
+     * Compares with the previous value the list query delivers in the same row, the cursor is not moved.
+     */
+    private float calculatePercentChange(final Cursor cursor, final float value) {
         final float percent;
-        if (!cursor.isLast()) {
-            cursor.moveToNext();
-            final Measurement previous = this.displayField.createMeasurement(cursor);
-            cursor.moveToPrevious();
-            percent = measurement.getPercentDifference(previous);
+        if (this.previousColumn >= 0 && !cursor.isNull(this.previousColumn)) {
+            percent = Measurement.getPercentDifference(value, cursor.getFloat(this.previousColumn));
         } else {
             percent = 0;
         }
         return percent;
     }
 
-    private void displayPercentChange(final View view, final float percent) {
-        // final TextView t = (TextView) view.findViewById(R.id.percentchange);
-        // t.setText((percent > 0 ? "+" : "") + percent + "%");
-        final ImageView i = (ImageView) view.findViewById(R.id.change_arrow);
-        final Resources resources = view.getContext().getResources();
+    /**
+     * ImageView only loads the drawable again when the resource differs from the one it shows.
+     */
+    private void displayPercentChange(final ViewHolder holder, final float percent) {
         if (percent > 0) {
-            i.setImageDrawable(resources.getDrawable(android.R.drawable.arrow_up_float));
+            holder.changeArrow.setImageResource(android.R.drawable.arrow_up_float);
         } else if (percent < 0) {
-            i.setImageDrawable(resources.getDrawable(android.R.drawable.arrow_down_float));
+            holder.changeArrow.setImageResource(android.R.drawable.arrow_down_float);
         } else {
-            i.setImageDrawable(resources.getDrawable(android.R.drawable.radiobutton_off_background));
+            holder.changeArrow.setImageResource(android.R.drawable.radiobutton_off_background);
         }
     }
 
     @Override
     public View newView(final Context context, final Cursor cursor, final ViewGroup parent) {
         final View view = LayoutInflater.from(context).inflate(R.layout.layout_weight_row, parent, false);
+        final ViewHolder holder = new ViewHolder();
+        holder.measure = (TextView) view.findViewById(R.id.measure);
+        holder.changeArrow = (ImageView) view.findViewById(R.id.change_arrow);
+        holder.bmi = (TextView) view.findViewById(R.id.bmi);
+        holder.bmiLabel = view.findViewById(R.id.label_bmi);
+        holder.date = (TextView) view.findViewById(R.id.date);
+        holder.comment = (TextView) view.findViewById(R.id.comment);
+        holder.commentRow = view.findViewById(R.id.comment_row);
+        ((TextView) view.findViewById(R.id.label_measure)).setText(this.labelText);
+        view.setTag(holder);
         return view;
     }
 
     /**
      * Formats and displays the date
-     * 
-     * @param view
-     * @param circumference
      */
-    private void displayDate(final View view, final String strDate) {
-        final long timestamp = Long.parseLong(strDate);
-        final String formattedDate = TIME_AND_DATE_FORMAT.format(new Date(timestamp));
-        final TextView t2 = (TextView) view.findViewById(R.id.date);
-        t2.setText(formattedDate);
+    private void displayDate(final ViewHolder holder, final long timestamp) {
+        this.date.setTime(timestamp);
+        this.buffer.setLength(0);
+        this.timeAndDateFormat.format(this.date, this.buffer, this.fieldPosition);
+        holder.date.setText(this.buffer.toString());
     }
 
     /**
-     * Converts, formats and displays the weight measure
-     * 
-     * @param view
-     * @param circumference
+     * Converts, formats and displays the measure
      */
-    private void displayMeasurement(final View view, final Measurement measurement) {
-        final TextView t = (TextView) view.findViewById(R.id.measure);
-        t.setText(measurement.prettyPrintWithUnit(this.ctx));
-        final TextView t2 = (TextView) view.findViewById(R.id.label_measure);
-        t2.setText(this.labelText);
+    private void displayMeasurement(final ViewHolder holder, final float value) {
+        final Unit unit = this.displayField.getUnit();
+        this.buffer.setLength(0);
+        this.numberFormat.format(this.preferences.isMetric() ? value : unit.convertToImperial(value), this.buffer, this.fieldPosition);
+        this.buffer.append(' ').append(this.unitName);
+        holder.measure.setText(this.buffer.toString());
     }
 
     /**
      * Calculates, formats and displays the bmi
-     * 
-     * @param view
-     * @param circumference
      */
-    private void displayBMI(final View view, final Measurement measurement) {
-        if (measurement.getField() == MeasureType.WEIGHT) {
-            final TextView t3 = (TextView) view.findViewById(R.id.bmi);
-            t3.setText(NumberFormat.getInstance(Locale.ENGLISH).format(StatisticsFactory.calculateBmi(measurement, this.height)));
+    private void displayBMI(final ViewHolder holder, final float value) {
+        if (this.displayField == MeasureType.WEIGHT) {
+            this.buffer.setLength(0);
+            this.numberFormat.format(StatisticsFactory.calculateBmi(value, this.preferences.getHeight()), this.buffer, this.fieldPosition);
+            holder.bmi.setText(this.buffer.toString());
+            holder.bmiLabel.setVisibility(View.VISIBLE);
         } else {
-            view.findViewById(R.id.label_bmi).setVisibility(View.INVISIBLE);
+            holder.bmiLabel.setVisibility(View.INVISIBLE);
         }
     }
 
-    private void displayComment(final Context context, final View view, final Measurement measurement) {
-        if (UserPreferences.isCommentEnabled(context) && measurement.getComment() != null && !measurement.getComment().equals("")) {
-            final TextView commentView = (TextView) view.findViewById(R.id.comment);
-            commentView.setText(measurement.getComment());
+    private void displayComment(final ViewHolder holder, final String comment) {
+        if (comment != null && !comment.equals("")) {
+            holder.comment.setText(comment);
+            holder.commentRow.setVisibility(View.VISIBLE);
         } else {
-            final View commentRowView = view.findViewById(R.id.comment_row);
-            commentRowView.setVisibility(View.GONE);
+            holder.commentRow.setVisibility(View.GONE);
         }
     }
 
@@ -120,7 +120,6 @@ public class MeasureEdit extends Activity implements OnDateSetListener, OnTimeSe
         try {
             updateMeasureValueFromInput();
             saveMeasurement(this.measure);
-            finish();
         } catch (final MeasurementException e) {
             e.createToast(this, "confirmButton");
         }
@@ -173,8 +172,17 @@ public class MeasureEdit extends Activity implements OnDateSetListener, OnTimeSe
 
     private void saveMeasurement(final Measurement toSave) {
         Log.d(MeasureActivity.TAG, "saveMeasurement " + toSave);
-        final SqliteHelper mDbHelper = new SqliteHelper(this);
-        mDbHelper.updateMeasure(toSave.getId(), toSave);
+        final SqliteHelper mDbHelper = SqliteHelper.getInstance(this);
+        mDbHelper.updateMeasure(toSave.getId(), toSave, new SqliteHelper.WriteCallback<Boolean>() {
+
+            public void onWriteDone(final Boolean updated) {
+                finish();
+            }
+
+            public void onWriteFailed(final MeasurementException error) {
+                error.createToast(MeasureEdit.this, "saveMeasurement");
+            }
+        });
         mDbHelper.close();
     }
 
@@ -68,11 +68,10 @@ public class MeasureFastEdit extends Activity {
         confirmButton.setOnClickListener(new View.OnClickListener() {
 
             public void onClick(final View view) {
-                final SqliteHelper db = new SqliteHelper(MeasureFastEdit.this);
+                final SqliteHelper db = SqliteHelper.getInstance(MeasureFastEdit.this);
                 setResult(RESULT_OK);
                 try {
                     saveMeasurements(db);
-                    finish();
                 } catch (final MeasurementException e) {
                     e.createToast(MeasureFastEdit.this, "confirmButton");
                 } finally {
@@ -84,14 +83,24 @@ public class MeasureFastEdit extends Activity {
     }
 
     private void saveMeasurements(final SqliteHelper db) throws MeasurementException {
+        final List<Measurement> measurements = new ArrayList<Measurement>();
         for (final InputRecorder input : this.recorders) {
-            final Measurement measurement = input.getCurrent();
-            db.createMeasure(measurement);
+            measurements.add(input.getCurrent());
         }
+        db.createMeasures(measurements, new SqliteHelper.WriteCallback<Integer>() {
+
+            public void onWriteDone(final Integer created) {
+                finish();
+            }
+
+            public void onWriteFailed(final MeasurementException error) {
+                error.createToast(MeasureFastEdit.this, "saveMeasurements");
+            }
+        });
     }
 
     private Measurement populateInput(final MeasureType type) {
-        final SqliteHelper db = new SqliteHelper(MeasureFastEdit.this);
+        final SqliteHelper db = SqliteHelper.getInstance(MeasureFastEdit.this);
         final Cursor cursor = db.fetchLast(type);
         Measurement measurement;
         if (cursor != null && cursor.getCount() > 0) {
@@ -61,7 +61,7 @@ public class MeasureIntentHelper {
 
     private Measurement retrieveMeasureFromDatabase(final Long mRowId, final MeasureType field) {
         final Measurement result;
-        final SqliteHelper mDbHelper = new SqliteHelper(this.context);
+        final SqliteHelper mDbHelper = SqliteHelper.getInstance(this.context);
         final Cursor cursor = mDbHelper.fetchById(mRowId);
         if (cursor.getCount() != 0 && field != null) {
             result = field.createMeasurement(cursor);
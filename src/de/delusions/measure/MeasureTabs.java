@@ -31,21 +31,31 @@ import android.view.Menu;
 import android.view.MenuInflater;
 import android.view.MenuItem;
 import android.widget.TabHost;
+import android.widget.Toast;
 import de.delusions.measure.activities.bmi.BmiTableActivity;
 import de.delusions.measure.activities.chart.WeightChartActivity;
 import de.delusions.measure.activities.prefs.UserPreferences;
 import de.delusions.measure.database.SqliteExport;
+import de.delusions.measure.database.SqliteHelper;
 import de.delusions.measure.database.SqliteManagement;
+import de.delusions.measure.database.SqliteSnapshot;
 import de.delusions.measure.ment.MeasureType;
 import de.delusions.measure.ment.MeasurementException;
 
 public class MeasureTabs extends TabActivity {
 
+    /** keeps the shared database open for as long as the tabs are alive */
+    private SqliteHelper db;
+
     @Override
     public void onCreate(final Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
 
         setContentView(R.layout.activity_tabhost);
+        if (SqliteHelper.applyPendingRestore(this)) {
+            Toast.makeText(this, R.string.snapshot_toast_pending, Toast.LENGTH_LONG).show();
+        }
+        this.db = SqliteHelper.getInstance(this);
 
         MeasureType.initializeTypeMap(this);
         final Resources res = getResources();
@@ -70,6 +80,12 @@ public class MeasureTabs extends TabActivity {
 
     }
 
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        this.db.close();
+    }
+
     @Override
     public boolean onCreateOptionsMenu(final Menu menu) {
         super.onCreateOptionsMenu(menu);
@@ -115,6 +131,37 @@ public class MeasureTabs extends TabActivity {
                 e.createToast(a, "import");
             }
             return true;
+        case R.id.basic_menu_export_changes:
+            try {
+                new SqliteExport(a, true, SqliteExport.Format.CHANGES).execute();
+            } catch (final MeasurementException e) {
+                e.createToast(a, "export");
+            }
+            return true;
+        case R.id.basic_menu_backup:
+            try {
+                new SqliteExport(a, true, SqliteExport.Format.BACKUP).execute();
+            } catch (final MeasurementException e) {
+                e.createToast(a, "backup");
+            }
+            return true;
+        case R.id.basic_menu_restore:
+            try {
+                new SqliteExport(a, false, SqliteExport.Format.BACKUP).execute();
+            } catch (final MeasurementException e) {
+                e.createToast(a, "restore");
+            }
+            return true;
+        case R.id.basic_menu_snapshot:
+            try {
+                new SqliteSnapshot(a, false).execute();
+            } catch (final MeasurementException e) {
+                e.createToast(a, "save snapshot");
+            }
+            return true;
+        case R.id.basic_menu_restore_snapshot:
+            SqliteManagement.restoreSnapshot(a).show();
+            return true;
         case R.id.basic_menu_deleteall:
             SqliteManagement.clearDatabase(a).show();
         }
@@ -18,6 +18,7 @@ import android.widget.TextView;
 import de.delusions.measure.activities.prefs.UserPreferences;
 import de.delusions.measure.database.SqliteHelper;
 import de.delusions.measure.ment.Measurement;
+import de.delusions.measure.ment.MeasurementException;
 
 /**
  * 
@@ -43,7 +44,7 @@ public class PreviousCommentActivity extends ListActivity {
         this.measurement = new MeasureIntentHelper(this, getIntent(), savedInstanceState).retrieveMeasure();
         Log.d(TAG, "measurement = " + this.measurement);
 
-        this.db = new SqliteHelper(this);
+        this.db = SqliteHelper.getInstance(this);
         this.cursor = this.db.fetchCommentsOnly();
         Log.d(TAG, "cursor size : " + this.cursor.getCount());
         final CursorAdapter adapter = new CursorAdapter(this, this.cursor) {
@@ -74,11 +75,19 @@ public class PreviousCommentActivity extends ListActivity {
     protected void onListItemClick(final ListView l, final View v, final int position, final long id) {
         super.onListItemClick(l, v, position, id);
         final String comment = ((TextView) v.findViewById(R.id.comment)).getText().toString();
-        final SqliteHelper dbHelper = new SqliteHelper(this);
+        final SqliteHelper dbHelper = SqliteHelper.getInstance(this);
         this.measurement.setComment(comment);
-        dbHelper.updateMeasure(this.measurement.getId(), this.measurement);
+        dbHelper.updateMeasure(this.measurement.getId(), this.measurement, new SqliteHelper.WriteCallback<Boolean>() {
+
+            public void onWriteDone(final Boolean updated) {
+                finish();
+            }
+
+            public void onWriteFailed(final MeasurementException error) {
+                error.createToast(PreviousCommentActivity.this, "updateComment");
+            }
+        });
         dbHelper.close();
-        finish();
     }
 
     public static Intent createIntent(final Context context, final long rowId) {
@@ -32,6 +32,7 @@ import de.delusions.measure.components.MeasureDisplay;
 import de.delusions.measure.database.SqliteHelper;
 import de.delusions.measure.ment.MeasureType;
 import de.delusions.measure.ment.Measurement;
+import de.delusions.measure.ment.RunningStatistics;
 
 public class BmiTableActivity extends Activity {
 
@@ -65,10 +66,12 @@ public class BmiTableActivity extends Activity {
     }
 
     private void populateDataLabels() {
-        final SqliteHelper mDbHelper = new SqliteHelper(this);
+        final SqliteHelper mDbHelper = SqliteHelper.getInstance(this);
 
-        if (!mDbHelper.isEmptyWeight()) {
-            final StatisticsFactory stats = new StatisticsFactory(mDbHelper, this);
+        final RunningStatistics weight = mDbHelper.fetchStatistics(MeasureType.WEIGHT);
+        if (!weight.isEmpty()) {
+            final boolean waistEnabled = UserPreferences.isEnabled(MeasureType.WAIST, this);
+            final StatisticsFactory stats = new StatisticsFactory(weight, waistEnabled ? mDbHelper.fetchStatistics(MeasureType.WAIST) : null, this);
 
             for (final BMI bmi : BMI.values()) {
                 setBMIText(bmi);
@@ -80,7 +83,7 @@ public class BmiTableActivity extends Activity {
             setText(R.id.stat_togo, stats.calculateTogo());
             setTextBmi(R.id.stat_bmi, stats.calculateCurrentBmi());
 
-            if (UserPreferences.isEnabled(MeasureType.WAIST, this)) {
+            if (waistEnabled) {
                 setText(R.id.stat_wthr, stats.calculateWtHR());
             } else {
                 findViewById(R.id.stat_wthr).setVisibility(View.GONE);
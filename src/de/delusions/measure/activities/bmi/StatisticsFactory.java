@@ -19,11 +19,11 @@ import java.util.Calendar;
 import java.util.Date;
 
 import android.content.Context;
-import android.database.Cursor;
 import de.delusions.measure.activities.prefs.UserPreferences;
 import de.delusions.measure.database.SqliteHelper;
 import de.delusions.measure.ment.MeasureType;
 import de.delusions.measure.ment.Measurement;
+import de.delusions.measure.ment.RunningStatistics;
 import de.delusions.measure.ment.Unit;
 
 public class StatisticsFactory {
@@ -35,18 +35,23 @@ public class StatisticsFactory {
     private final Measurement waist;
 
     public StatisticsFactory(final SqliteHelper db, final Context ctx) {
-        Cursor cursor = db.fetchFirst(MeasureType.WEIGHT);
-        this.starting = MeasureType.WEIGHT.createMeasurement(cursor);
-        cursor.close();
-        cursor = db.fetchLast(MeasureType.WEIGHT);
-        this.last = MeasureType.WEIGHT.createMeasurement(cursor);
-        cursor.close();
+        this(db.fetchStatistics(MeasureType.WEIGHT), UserPreferences.isEnabled(MeasureType.WAIST, ctx) ? db.fetchStatistics(MeasureType.WAIST)
+                : null, ctx);
+    }
+
+    /**
+     * @param weight
+     *            the running statistics of the weight
+     * @param waist
+     *            the running statistics of the waist or null if the waist is not tracked
+     */
+    public StatisticsFactory(final RunningStatistics weight, final RunningStatistics waist, final Context ctx) {
+        this.starting = weight.getFirst();
+        this.last = weight.getLast();
         this.goal = UserPreferences.getGoal(ctx);
         this.height = UserPreferences.getHeight(ctx);
-        if (UserPreferences.isEnabled(MeasureType.WAIST, ctx)) {
-            cursor = db.fetchLast(MeasureType.WAIST);
-            this.waist = MeasureType.WAIST.createMeasurement(cursor);
-            cursor.close();
+        if (waist != null) {
+            this.waist = waist.getLast();
         } else {
             this.waist = null;
         }
@@ -128,15 +133,30 @@ public class StatisticsFactory {
         }
     }
 
+    /**
+     * Calculates the BMI from kg and height in cm without creating measurements
+     */
+    public static float calculateBmi(final float weightInKg, final float heightInCm) {
+        final float heightInMeter = heightInCm / 100;
+        return weightInKg / (heightInMeter * heightInMeter);
+    }
+
     public static Measurement calculateBmiWeight(final int bmiValue, final Measurement heightInCm) {
-        final float heightInMeter = heightInCm.getValue() / 100;
-        final float result = heightInMeter * heightInMeter * bmiValue;
+        final float result = calculateBmiWeight(bmiValue, heightInCm.getValue());
         final Measurement measurement = new Measurement();
         measurement.setValue(result, true);
         measurement.setUnit(Unit.KG);
         return measurement;
     }
 
+    /**
+     * Calculates the weight in kg for a bmi value without creating measurements
+     */
+    public static float calculateBmiWeight(final int bmiValue, final float heightInCm) {
+        final float heightInMeter = heightInCm / 100;
+        return heightInMeter * heightInMeter * bmiValue;
+    }
+
     /**
      * @return
      */
@@ -39,15 +39,23 @@ public class ChartCoordinates {
     }
 
     public Point calculatePoint(double x, double y, int ceiling, int floor) {
-        final int maxY = ceiling;
-        final int minY = floor;
         final Point result = new Point();
-        result.x = this.drawSizes[LEFT] + (int) ((x - this.minX) * this.drawSizes[RIGHT] / (this.maxX - this.minX));
-        result.y = this.drawSizes[TOP] + (int) ((maxY - y) * this.drawSizes[BOTTOM] / (maxY - minY));
+        result.x = calculateX(x);
+        result.y = calculateY(y, ceiling, floor);
         return result;
 
     }
 
+    public int calculateX(double x) {
+        return this.drawSizes[LEFT] + (int) ((x - this.minX) * this.drawSizes[RIGHT] / (this.maxX - this.minX));
+    }
+
+    public int calculateY(double y, int ceiling, int floor) {
+        final int maxY = ceiling;
+        final int minY = floor;
+        return this.drawSizes[TOP] + (int) ((maxY - y) * this.drawSizes[BOTTOM] / (maxY - minY));
+    }
+
     public int getTop() {
         return this.drawSizes[TOP];
     }
@@ -16,82 +16,101 @@
 package de.delusions.measure.activities.chart;
 
 import java.text.SimpleDateFormat;
-import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Collections;
 import java.util.Date;
 import java.util.List;
 
 import android.content.Context;
 import android.database.Cursor;
 import android.graphics.Path;
-import android.graphics.Point;
 import android.util.Log;
-import de.delusions.measure.activities.prefs.UserPreferences;
+import de.delusions.measure.activities.prefs.PreferenceSnapshot;
 import de.delusions.measure.database.SqliteHelper;
 import de.delusions.measure.ment.MeasureType;
-import de.delusions.measure.ment.Measurement;
+import de.delusions.measure.ment.MeasurementSeries;
+import de.delusions.measure.ment.Unit;
 
 public class MeasurePath extends Path {
 
     private static final String TAG = "MeasurePath";
+    private static final long DAY = 24 * 60 * 60 * 1000;
+    /** longer ranges are drawn from the daily averages instead of every single measure */
+    static final int ROLLUP_DAYS = 180;
 
     private final Context ctx;
     private MeasureType type;
     private Calendar startingDate;
     private int lowerValue;
     private int upperValue;
-    private List<Measurement> measures;
+    private int days;
+    private MeasurementSeries series;
+    /** what is actually drawn, at most two points per pixel column */
+    private MeasurementSeries drawn;
 
     public MeasurePath(final Context ctx, final MeasureType type, final int days) {
         this.ctx = ctx;
         refreshData(type, days);
     }
 
+    /**
+     * Creates the path from data that has already been loaded for the starting date.
+     */
+    public MeasurePath(final Context ctx, final MeasurementSeries series, final Calendar startingDate, final int days) {
+        this.ctx = ctx;
+        this.type = series.getType();
+        this.days = days;
+        this.startingDate = startingDate;
+        this.series = series;
+        this.drawn = new MeasurementSeries(this.type);
+        calculateBoundaries(series, PreferenceSnapshot.get(ctx));
+    }
+
     public void refreshData(final MeasureType type, final int days) {
         rewind();
-        final boolean metric = UserPreferences.isMetric(this.ctx);
+        final PreferenceSnapshot preferences = PreferenceSnapshot.get(this.ctx);
+        if (this.series == null || !this.series.getType().equals(type)) {
+            this.series = new MeasurementSeries(type);
+            this.drawn = new MeasurementSeries(type);
+        }
         this.type = type;
+        this.days = days;
         this.startingDate = calculateStartingDate(days);
-        this.measures = retrieveDataForDays(this.ctx);
-        calculateBoundaries(this.measures, metric);
+        retrieveDataForDays(this.ctx);
+        calculateBoundaries(this.series, preferences);
     }
 
     public void fillPath(final ChartCoordinates coords) {
-        final boolean metric = UserPreferences.isMetric(this.ctx);
-        Point lastPoint = null;
-        for (final Measurement measure : this.measures) {
-            final float x = calculateDaysOnXAxis(measure);
-            final float y = measure.getValue(metric);
-            final Point point = coords.calculatePoint(x, y, this.upperValue, this.lowerValue);
-            Log.d(TAG, "fillPath " + x + " " + y + " -> " + point);
-
-            if (lastPoint == null) {
-                moveTo(point.x, point.y);
-            } else if (lastPoint.x != point.x) {
-                lineTo(point.x, point.y);
+        final boolean metric = PreferenceSnapshot.get(this.ctx).isMetric();
+        final long start = this.startingDate.getTimeInMillis();
+        final int columns = Math.max(1, coords.getRight());
+        this.series.downsample(this.drawn, start, start + this.days * DAY, columns);
+        Log.d(TAG, "fillPath " + this.series.size() + " reduced to " + this.drawn.size());
+        for (int i = 0; i < this.drawn.size(); i++) {
+            final float days = (float) (this.drawn.getTimestamp(i) - start) / DAY;
+            final int x = coords.calculateX(days);
+            final int y = coords.calculateY(this.drawn.getValue(i, metric), this.upperValue, this.lowerValue);
+            if (i == 0) {
+                moveTo(x, y);
             } else {
-                // ignore this value due to double dates
+                lineTo(x, y);
             }
-            lastPoint = point;
         }
     }
 
-    private float calculateDaysOnXAxis(final Measurement measure) {
-        return (measure.getTimestamp().getTime() - this.startingDate.getTimeInMillis()) / (24 * 60 * 60 * 1000);
-    }
-
-    private void calculateBoundaries(final List<Measurement> measures, final boolean metric) {
+    private void calculateBoundaries(final MeasurementSeries series, final PreferenceSnapshot preferences) {
+        final boolean metric = preferences.isMetric();
         float min;
-        final float goal = UserPreferences.getGoal(this.ctx).getValue(metric);
+        final float goal = metric ? preferences.getGoal() : Unit.KG.convertToImperial(preferences.getGoal());
         if (this.type == MeasureType.WEIGHT && goal > 1) {
             min = goal - 1;
         } else {
-            min = measures.size() > 0 ? measures.get(0).getValue() : 20;
+            min = series.isEmpty() ? 20 : series.getValue(0, metric);
         }
-        float max = measures.size() > 0 ? measures.get(0).getValue() : min * 2;
-        for (final Measurement measure : measures) {
-            min = Math.min(measure.getValue(metric), min);
-            max = Math.max(measure.getValue(metric), max);
+        float max = series.isEmpty() ? min * 2 : series.getValue(0, metric);
+        if (!series.isEmpty()) {
+            min = Math.min(series.min(metric), min);
+            max = Math.max(series.max(metric), max);
         }
         this.lowerValue = (int) Math.floor(min / 10) * 10;
         this.upperValue = (int) Math.ceil(max / 10) * 10;
@@ -102,24 +121,35 @@ public class MeasurePath extends Path {
         }
     }
 
-    private List<Measurement> retrieveDataForDays(final Context ctx) {
-        final List<Measurement> result = new ArrayList<Measurement>();
-        final SqliteHelper sqliteHelper = new SqliteHelper(ctx);
-        final Cursor cursor = sqliteHelper.fetchValuesOnlyByDate(this.startingDate.getTime(), this.type);
+    private void retrieveDataForDays(final Context ctx) {
+        final SqliteHelper sqliteHelper = SqliteHelper.getInstance(ctx);
+        final Cursor cursor = fetchValues(sqliteHelper, this.startingDate, this.days, Collections.singletonList(this.type));
         Log.d(TAG, "retrieveDataForDays:count=" + cursor.getCount());
-        cursor.moveToFirst();
-        while (!cursor.isAfterLast()) {
-            final Measurement measurement = this.type.createMeasurement(cursor);
-            Log.d(TAG, "retrieveWeightForDays:adding " + measurement);
-            result.add(measurement);
-            cursor.moveToNext();
-        }
+        this.series.fill(cursor);
         cursor.close();
         sqliteHelper.close();
-        return result;
     }
 
-    private Calendar calculateStartingDate(final int days) {
+    /**
+     * Fetches date and value of the given types from the starting date on, see
+     * {@link SqliteHelper#fetchValuesOnlyByDate(Date, List)}.
+     */
+    static Cursor fetchValues(final SqliteHelper db, final Calendar startingDate, final int days, final List<MeasureType> types) {
+        if (days > ROLLUP_DAYS) {
+            return db.aggregate(types, startingDate.getTime(), new Date(Long.MAX_VALUE), SqliteHelper.Bucket.DAY, SqliteHelper.Aggregate.AVG);
+        }
+        return db.fetchValuesOnlyByDate(startingDate.getTime(), types);
+    }
+
+    public MeasureType getType() {
+        return this.type;
+    }
+
+    public MeasurementSeries getSeries() {
+        return this.series;
+    }
+
+    static Calendar calculateStartingDate(final int days) {
         final Calendar cal = Calendar.getInstance();
         cal.set(Calendar.HOUR, 0);
         cal.set(Calendar.MINUTE, 0);
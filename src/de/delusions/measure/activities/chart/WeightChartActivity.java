@@ -19,7 +19,9 @@ import android.app.Activity;
 import android.content.SharedPreferences;
 import android.content.res.Configuration;
 import android.database.Cursor;
+import android.graphics.Bitmap;
 import android.graphics.PixelFormat;
+import android.os.AsyncTask;
 import android.os.Bundle;
 import android.preference.PreferenceManager;
 import android.util.DisplayMetrics;
@@ -49,6 +51,7 @@ public class WeightChartActivity extends Activity implements SharedPreferences.O
     private static final int YEAR_1 = 360;
 
     private WeightChartImage wcImage;
+    private ChartRenderTask renderTask;
 
     @Override
     public void onCreate(final Bundle savedInstanceState) {
@@ -89,6 +92,9 @@ public class WeightChartActivity extends Activity implements SharedPreferences.O
     @Override
     public void onDestroy() {
         super.onDestroy();
+        if (this.renderTask != null) {
+            this.renderTask.cancel(false);
+        }
         final SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
         prefs.unregisterOnSharedPreferenceChangeListener(this);
     }
@@ -101,6 +107,7 @@ public class WeightChartActivity extends Activity implements SharedPreferences.O
     }
 
     public void onSharedPreferenceChanged(final SharedPreferences sharedPreferences, final String key) {
+        this.wcImage.invalidate();
         if (key.equals(PrefItem.DISPLAY_MEASURE.getKey())) {
             Log.d(MeasureActivity.TAG, "onSharedPreferenceChanged " + key);
             setDisplayField();
@@ -135,7 +142,7 @@ public class WeightChartActivity extends Activity implements SharedPreferences.O
         all.setOnClickListener(new View.OnClickListener() {
 
             public void onClick(final View view) {
-                final SqliteHelper db = new SqliteHelper(WeightChartActivity.this);
+                final SqliteHelper db = SqliteHelper.getInstance(WeightChartActivity.this);
                 final Cursor cursor = db.fetchFirst(WeightChartActivity.this.wcImage.getDisplayField());
                 final Measurement first = MeasureType.WEIGHT.createMeasurement(cursor);
                 WeightChartActivity.this.wcImage.setDays(new Long((System.currentTimeMillis() - first.getTimestamp().getTime())
@@ -161,9 +168,73 @@ public class WeightChartActivity extends Activity implements SharedPreferences.O
     private void refreshAll() {
         Log.d(MeasureActivity.TAG, "WeightChartActivity:refreshDataAndGraph");
         setDisplayField();
-        this.wcImage.refreshData();
+        final WeightChartImage.ChartKey key = this.wcImage.createKey();
+        if (this.renderTask != null) {
+            if (key.equals(this.renderTask.key) && this.renderTask.getStatus() != AsyncTask.Status.FINISHED) {
+                return;
+            }
+            this.renderTask.cancel(false);
+            this.renderTask = null;
+        }
+        final Bitmap cached = this.wcImage.getChart(key);
+        if (cached != null) {
+            showChart(cached);
+        } else {
+            this.renderTask = new ChartRenderTask(key);
+            this.renderTask.execute();
+        }
+    }
+
+    private void showChart(final Bitmap chart) {
         final ImageView image = (ImageView) findViewById(R.id.testy_img);
-        image.setImageBitmap(this.wcImage.refreshGraph());
+        image.setImageBitmap(chart);
+    }
+
+    /**
+     * Renders the chart in the background. The view keeps showing the previous chart until the new one is done, a render that
+     * is no longer wanted gets cancelled.
+     */
+    private class ChartRenderTask extends AsyncTask<Void, Void, Bitmap> {
+
+        private final WeightChartImage.ChartKey key;
+        /** the result, also when the task is cancelled after rendering, onCancelled(Bitmap) needs API 11 */
+        private volatile Bitmap rendered;
+
+        ChartRenderTask(final WeightChartImage.ChartKey key) {
+            this.key = key;
+        }
+
+        @Override
+        protected Bitmap doInBackground(final Void... params) {
+            Bitmap chart = WeightChartActivity.this.wcImage.render(this.key, this);
+            if (chart != null && isCancelled()) {
+                // before API 11 onCancelled may already have run
+                WeightChartActivity.this.wcImage.discard(chart);
+                chart = null;
+            }
+            this.rendered = chart;
+            return chart;
+        }
+
+        @Override
+        protected void onPostExecute(final Bitmap chart) {
+            if (chart == null) {
+                return;
+            }
+            if (WeightChartActivity.this.wcImage.isCurrent(this.key)) {
+                showChart(chart);
+                WeightChartActivity.this.wcImage.publish(this.key, chart);
+            } else {
+                WeightChartActivity.this.wcImage.discard(chart);
+            }
+        }
+
+        @Override
+        protected void onCancelled() {
+            if (this.rendered != null) {
+                WeightChartActivity.this.wcImage.discard(this.rendered);
+            }
+        }
     }
 
     private void setDisplayField() {
@@ -4,11 +4,16 @@
 package de.delusions.measure.activities.chart;
 
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Calendar;
 import java.util.Date;
+import java.util.List;
 
 import android.content.Context;
+import android.database.Cursor;
 import android.graphics.*;
 import android.graphics.Paint.Style;
+import android.os.AsyncTask;
 import android.util.DisplayMetrics;
 import android.util.Log;
 import de.delusions.measure.MeasureActivity;
@@ -16,8 +21,10 @@ import de.delusions.measure.R;
 import de.delusions.measure.activities.bmi.BMI;
 import de.delusions.measure.activities.bmi.StatisticsFactory;
 import de.delusions.measure.activities.prefs.UserPreferences;
+import de.delusions.measure.database.SqliteHelper;
 import de.delusions.measure.ment.MeasureType;
-import de.delusions.measure.ment.Measurement;
+import de.delusions.measure.ment.MeasurementSeries;
+import de.delusions.measure.ment.Unit;
 
 /**
  * 
@@ -43,10 +50,23 @@ public class WeightChartImage {
 
     private MeasureType displayField;
     private MeasurePath trackedValuePath;
+    /** the other enabled types while all are shown */
+    private final List<MeasurePath> otherPaths = new ArrayList<MeasurePath>();
     private boolean showAll;
 
     private Context context;
 
+    /** the published chart, what it was rendered from and a bitmap that is no longer shown and can be drawn into */
+    private Bitmap chart;
+    private ChartKey chartKey;
+    private Bitmap spare;
+    /** counts {@link #invalidate()} calls, a chart rendered before the last one is outdated */
+    private int generation;
+
+    /** the key of the render in progress, only used while holding renderLock */
+    private ChartKey rendering;
+    private final Object renderLock = new Object();
+
     public WeightChartImage(final Context context, final int days) {
         this.context = context;
         this.days = days;
@@ -111,47 +131,170 @@ public class WeightChartImage {
                 + getImageHeight());
     }
 
-    public Bitmap refreshGraph() {
-        final Bitmap charty = createBitmap();
+    /**
+     * @return the key for the chart the current settings ask for
+     */
+    ChartKey createKey() {
+        return new ChartKey(getDisplayField(), getDays(), isShowAll(), getImageWidth(), getImageHeight(), UserPreferences.isMetric(this.context),
+                SqliteHelper.getDataVersion(), this.generation);
+    }
+
+    /**
+     * @return the last published chart if it was rendered for this key, null if it has to be rendered
+     */
+    synchronized Bitmap getChart(final ChartKey key) {
+        return this.chart != null && key.equals(this.chartKey) ? this.chart : null;
+    }
+
+    /**
+     * Forces the next render, for changes the cache key does not cover like goal or height.
+     */
+    public synchronized void invalidate() {
+        this.generation++;
+        this.chartKey = null;
+    }
+
+    /**
+     * @return false if the chart has been invalidated since the key was created
+     */
+    synchronized boolean isCurrent(final ChartKey key) {
+        return key.generation == this.generation;
+    }
+
+    /**
+     * Loads the data and draws the chart for the key. Runs on a background thread, one render at a time, and gives up as
+     * soon as the task is cancelled. The bitmap drawn into is never the one currently published.
+     * 
+     * @return the chart or null if the task was cancelled
+     */
+    Bitmap render(final ChartKey key, final AsyncTask<?, ?, ?> task) {
+        synchronized (this.renderLock) {
+            if (task.isCancelled()) {
+                return null;
+            }
+            this.rendering = key;
+            refreshData();
+            if (task.isCancelled()) {
+                return null;
+            }
+            final Bitmap charty = createBitmap();
+            if (!drawGraph(charty, task)) {
+                returnSpare(charty);
+                return null;
+            }
+            return charty;
+        }
+    }
+
+    /**
+     * Takes back a rendered chart that is not going to be shown, to be drawn into by the next render.
+     */
+    synchronized void discard(final Bitmap bitmap) {
+        if (bitmap != this.chart) {
+            this.spare = bitmap;
+        }
+    }
+
+    /**
+     * Makes a rendered chart the current one, the previously published bitmap is reused for the next render. Call on the main
+     * thread after the chart has been handed to the view.
+     */
+    synchronized void publish(final ChartKey key, final Bitmap bitmap) {
+        if (this.chart != null && this.chart != bitmap) {
+            this.spare = this.chart;
+        }
+        this.chart = bitmap;
+        this.chartKey = key;
+    }
+
+    private boolean drawGraph(final Bitmap charty, final AsyncTask<?, ?, ?> task) {
         final Canvas canvas = new Canvas(charty);
         drawBackgroundAndGrid(canvas);
 
-        if (getDisplayField() == MeasureType.WEIGHT && !isShowAll()) {
+        if (this.rendering.field == MeasureType.WEIGHT && !this.rendering.showAll) {
             drawBmiLines(canvas);
             drawGoalLine(canvas);
         }
         getTrackedValuePath().fillPath(this.coords);
-        canvas.drawPath(getTrackedValuePath(), createGraphPaint(getDisplayField(), 4));
-        if (isShowAll()) {
-            for (final MeasureType type : MeasureType.getEnabledTypes(this.context)) {
-                if (type != getDisplayField()) {
-                    Log.d(MeasureActivity.TAG, "Adding line for " + type);
-                    final MeasurePath path = new MeasurePath(this.context, type, getDays());
-                    path.fillPath(this.coords);
-                    canvas.drawPath(path, createGraphPaint(type, 4));
+        canvas.drawPath(getTrackedValuePath(), createGraphPaint(this.rendering.field, 4));
+        if (this.rendering.showAll) {
+            for (final MeasurePath path : this.otherPaths) {
+                if (task.isCancelled()) {
+                    return false;
                 }
+                Log.d(MeasureActivity.TAG, "Adding line for " + path.getType());
+                path.fillPath(this.coords);
+                canvas.drawPath(path, createGraphPaint(path.getType(), 4));
             }
             drawLegend(canvas);
         }
-        return charty;
+        return true;
     }
 
-    public void refreshData() {
-        setTrackedValuePath(new MeasurePath(this.context, getDisplayField(), getDays()));
+    private void refreshData() {
+        this.otherPaths.clear();
+        if (this.rendering.showAll) {
+            refreshAllTypes();
+        } else {
+            setTrackedValuePath(new MeasurePath(this.context, this.rendering.field, this.rendering.days));
+        }
         if (this.coords == null) {
             final String label = formatHorizontalLabel(0);
             final int[] drawSizes = getDrawSizes(label);
-            this.coords = new ChartCoordinates(getDays(), drawSizes);
+            this.coords = new ChartCoordinates(this.rendering.days, drawSizes);
+        }
+        this.coords.setDays(this.rendering.days);
+    }
+
+    /**
+     * Loads the displayed type and all other enabled types with a single query.
+     */
+    private void refreshAllTypes() {
+        final List<MeasureType> types = new ArrayList<MeasureType>();
+        types.add(this.rendering.field);
+        for (final MeasureType type : MeasureType.getEnabledTypes(this.context)) {
+            if (!type.equals(this.rendering.field)) {
+                types.add(type);
+            }
+        }
+        final MeasurementSeries[] series = new MeasurementSeries[types.size()];
+        for (int i = 0; i < series.length; i++) {
+            series[i] = new MeasurementSeries(types.get(i));
+        }
+        final Calendar startingDate = MeasurePath.calculateStartingDate(this.rendering.days);
+        final SqliteHelper db = SqliteHelper.getInstance(this.context);
+        final Cursor cursor = MeasurePath.fetchValues(db, startingDate, this.rendering.days, types);
+        MeasurementSeries.fill(cursor, series);
+        cursor.close();
+        db.close();
+
+        setTrackedValuePath(new MeasurePath(this.context, series[0], startingDate, this.rendering.days));
+        for (int i = 1; i < series.length; i++) {
+            this.otherPaths.add(new MeasurePath(this.context, series[i], startingDate, this.rendering.days));
         }
-        this.coords.setDays(getDays());
+    }
+
+    private synchronized Bitmap takeSpare() {
+        final Bitmap result = this.spare;
+        this.spare = null;
+        return result;
+    }
+
+    private synchronized void returnSpare(final Bitmap bitmap) {
+        this.spare = bitmap;
     }
 
     private Bitmap createBitmap() {
-        return Bitmap.createBitmap(getImageWidth(), getImageHeight(), Bitmap.Config.ARGB_8888);
+        final Bitmap reused = takeSpare();
+        if (reused != null && reused.getWidth() == this.rendering.width && reused.getHeight() == this.rendering.height) {
+            reused.eraseColor(Color.TRANSPARENT);
+            return reused;
+        }
+        return Bitmap.createBitmap(this.rendering.width, this.rendering.height, Bitmap.Config.ARGB_8888);
     }
 
     private int[] getDrawSizes(final String label) {
-        return createCoords(getImageWidth() - PADDING, getImageHeight() - PADDING, GRID, label);
+        return createCoords(this.rendering.width - PADDING, this.rendering.height - PADDING, GRID, label);
     }
 
     /**
@@ -203,12 +346,12 @@ public class WeightChartImage {
     }
 
     private void drawBmiLines(final Canvas canvas) {
-        final Measurement height = UserPreferences.getHeight(this.context);
+        final float height = UserPreferences.getHeight(this.context).getValue();
         final Paint paint = WeightChartImage.createPaint(Color.WHITE, Paint.Style.STROKE);
         for (final BMI bmi : BMI.values()) {
             final int bmiValue = bmi.getCeiling(this.context);
-            final Measurement bmiWeight = StatisticsFactory.calculateBmiWeight(bmiValue, height);
-            final float value = bmiWeight.getValue(UserPreferences.isMetric(this.context));
+            final float bmiWeight = StatisticsFactory.calculateBmiWeight(bmiValue, height);
+            final float value = this.rendering.metric ? bmiWeight : Unit.KG.convertToImperial(bmiWeight);
             if (value < getTrackedValuePath().getCeiling() && value > getTrackedValuePath().getFloor()) {
                 paint.setColor(bmi.getColor(this.context));
 
@@ -224,7 +367,7 @@ public class WeightChartImage {
 
     private void drawGoalLine(final Canvas canvas) {
         final String labelStr = "Goal";
-        final float value = UserPreferences.getGoal(this.context).getValue(UserPreferences.isMetric(this.context));
+        final float value = UserPreferences.getGoal(this.context).getValue(this.rendering.metric);
         final Paint paint = WeightChartImage.createPaint(this.context.getResources().getColor(R.color.yourgoal), Paint.Style.STROKE);
         final Path goalPath = createHorizontalPath(value);
         final Point label = createStartPointForHorizontalLabel(paint, labelStr, value);
@@ -234,7 +377,7 @@ public class WeightChartImage {
 
     private Path createHorizontalPath(final float value) {
         final Point start = calculatePoint(0, value);
-        final Point end = calculatePoint(getDays(), value);
+        final Point end = calculatePoint(this.rendering.days, value);
         final Path bmiLine = new Path();
         bmiLine.moveTo(start.x, start.y);
         bmiLine.lineTo(end.x, end.y);
@@ -249,7 +392,7 @@ public class WeightChartImage {
         final int paddingRight = 5;
         final int paddingBottom = 3;
         final int textWidth = Math.round(WeightChartImage.calculateTextWidth(paint, label));
-        final Point lineEnd = calculatePoint(getDays(), value);
+        final Point lineEnd = calculatePoint(this.rendering.days, value);
         final Point result = new Point();
         result.x = lineEnd.x - textWidth - paddingRight;
         result.y = lineEnd.y - paddingBottom;
@@ -262,7 +405,7 @@ public class WeightChartImage {
         for (int segment = 0; segment <= SEGMENTS; segment++) {
             drawGridLine(canvas, GRID, segment, false);
             drawGridLine(canvas, GRID, segment, true);
-            if (!isShowAll()) {
+            if (!this.rendering.showAll) {
                 drawGridLabel(canvas, GRID, segment, false, formatVerticalLabel(segment));
             }
             drawGridLabel(canvas, GRID, segment, true, formatHorizontalLabel(segment));
@@ -271,11 +414,11 @@ public class WeightChartImage {
 
     private String formatVerticalLabel(final int segment) {
         final int displayed = getTrackedValuePath().labelVerticalMeasureValue(segment, SEGMENTS);
-        return String.format("%d %s", displayed, getDisplayField().getUnit().retrieveUnitName(this.context));
+        return String.format("%d %s", displayed, this.rendering.field.getUnit().retrieveUnitName(this.context));
     }
 
     private String formatHorizontalLabel(final int segment) {
-        final Date date = getTrackedValuePath().labelHorizontalDate(getDays(), segment, SEGMENTS);
+        final Date date = getTrackedValuePath().labelHorizontalDate(this.rendering.days, segment, SEGMENTS);
         return DATE_LABEL_FORMAT.format(date);
     }
 
@@ -309,4 +452,55 @@ public class WeightChartImage {
 
     }
 
+    /**
+     * Everything a rendered chart depends on.
+     */
+    static final class ChartKey {
+
+        private final MeasureType field;
+        private final int days;
+        private final boolean showAll;
+        private final int width;
+        private final int height;
+        private final boolean metric;
+        private final long dataVersion;
+        private final int generation;
+
+        ChartKey(final MeasureType field, final int days, final boolean showAll, final int width, final int height, final boolean metric,
+                final long dataVersion, final int generation) {
+            this.field = field;
+            this.days = days;
+            this.showAll = showAll;
+            this.width = width;
+            this.height = height;
+            this.metric = metric;
+            this.dataVersion = dataVersion;
+            this.generation = generation;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (!(o instanceof ChartKey)) {
+                return false;
+            }
+            final ChartKey other = (ChartKey) o;
+            return this.field.equals(other.field) && this.days == other.days && this.showAll == other.showAll && this.width == other.width
+                    && this.height == other.height && this.metric == other.metric && this.dataVersion == other.dataVersion
+                    && this.generation == other.generation;
+        }
+
+        @Override
+        public int hashCode() {
+            int result = this.field.hashCode();
+            result = 31 * result + this.days;
+            result = 31 * result + (this.showAll ? 1 : 0);
+            result = 31 * result + this.width;
+            result = 31 * result + this.height;
+            result = 31 * result + (this.metric ? 1 : 0);
+            result = 31 * result + (int) (this.dataVersion ^ (this.dataVersion >>> 32));
+            result = 31 * result + this.generation;
+            return result;
+        }
+    }
+
 }
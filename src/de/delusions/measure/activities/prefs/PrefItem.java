@@ -43,6 +43,8 @@ public enum PrefItem {
 
     COMMENTS("user.comment", null, Boolean.class, null),
 
+    EXPORT_COMPRESSION("user.export.compression", null, String.class, null),
+
     DISPLAY_MEASURE("user.display", null, String.class, null);
 
     String key;
@@ -0,0 +1,111 @@
+/*
+   Copyright 2013 Sonja Pieper
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package de.delusions.measure.activities.prefs;
+
+import java.util.EnumSet;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.content.SharedPreferences.OnSharedPreferenceChangeListener;
+import android.preference.PreferenceManager;
+import android.util.Log;
+
+/**
+ * The preferences read while drawing, parsed once. A new snapshot replaces the current one whenever a preference changes,
+ * so list rows, chart points and input taps read final fields instead of looking up and parsing strings.
+ * <p>
+ * Listeners are called in no particular order, code reacting to a change itself should read the changed value from the
+ * {@link SharedPreferences} it is given.
+ */
+public final class PreferenceSnapshot {
+
+    private static final String TAG = PreferenceSnapshot.class.getSimpleName();
+
+    private static volatile PreferenceSnapshot current;
+
+    /** held here because the preferences only keep weak references to their listeners */
+    private static final OnSharedPreferenceChangeListener LISTENER = new OnSharedPreferenceChangeListener() {
+
+        public void onSharedPreferenceChanged(final SharedPreferences prefs, final String key) {
+            Log.d(TAG, "onSharedPreferenceChanged " + key);
+            current = new PreferenceSnapshot(prefs);
+        }
+    };
+
+    private final boolean metric;
+    private final boolean commentEnabled;
+    private final boolean fastInput;
+    /** in kg */
+    private final float goal;
+    /** in cm */
+    private final float height;
+    private final EnumSet<PrefItem> enabled = EnumSet.noneOf(PrefItem.class);
+
+    private PreferenceSnapshot(final SharedPreferences prefs) {
+        this.metric = Boolean.parseBoolean(prefs.getString(PrefItem.METRIC.getKey(), "true"));
+        this.commentEnabled = prefs.getBoolean(PrefItem.COMMENTS.getKey(), false);
+        this.fastInput = prefs.getBoolean(PrefItem.FAST_INPUT.getKey(), false);
+        this.goal = prefs.getFloat(PrefItem.GOAL.getKey(), 0);
+        this.height = prefs.getFloat(PrefItem.HEIGHT.getKey(), 0);
+        for (final PrefItem item : PrefItem.values()) {
+            if (item.getTrackingType() != null && prefs.getBoolean(item.getKey(), false)) {
+                this.enabled.add(item);
+            }
+        }
+    }
+
+    /**
+     * @return the current snapshot, read from the preferences on first use
+     */
+    public static PreferenceSnapshot get(final Context ctx) {
+        final PreferenceSnapshot snapshot = current;
+        if (snapshot != null) {
+            return snapshot;
+        }
+        synchronized (PreferenceSnapshot.class) {
+            if (current == null) {
+                final SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(ctx.getApplicationContext());
+                prefs.registerOnSharedPreferenceChangeListener(LISTENER);
+                current = new PreferenceSnapshot(prefs);
+            }
+            return current;
+        }
+    }
+
+    public boolean isMetric() {
+        return this.metric;
+    }
+
+    public boolean isCommentEnabled() {
+        return this.commentEnabled;
+    }
+
+    public boolean isFastInput() {
+        return this.fastInput;
+    }
+
+    public float getGoal() {
+        return this.goal;
+    }
+
+    public float getHeight() {
+        return this.height;
+    }
+
+    public boolean isEnabled(final PrefItem item) {
+        return this.enabled.contains(item);
+    }
+}
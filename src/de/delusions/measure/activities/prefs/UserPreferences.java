@@ -135,7 +135,7 @@ public class UserPreferences extends PreferenceActivity {
     }
 
     public static Measurement getGoal(final Context ctx) {
-        final float value = getUnitPreference(ctx, PrefItem.GOAL.getKey());
+        final float value = PreferenceSnapshot.get(ctx).getGoal();
         final Measurement measurement = new Measurement();
         measurement.setUnit(Unit.KG);
         measurement.setValue(value, true);
@@ -143,7 +143,7 @@ public class UserPreferences extends PreferenceActivity {
     }
 
     public static Measurement getHeight(final Context ctx) {
-        final float value = getUnitPreference(ctx, PrefItem.HEIGHT.getKey());
+        final float value = PreferenceSnapshot.get(ctx).getHeight();
         final Measurement measurement = new Measurement();
         measurement.setUnit(Unit.CM);
         measurement.setValue(value, true);
@@ -151,8 +151,7 @@ public class UserPreferences extends PreferenceActivity {
     }
 
     public static Boolean isMetric(final Context ctx) {
-        final SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(ctx);
-        return Boolean.parseBoolean(prefs.getString(PrefItem.METRIC.getKey(), "true"));
+        return PreferenceSnapshot.get(ctx).isMetric();
     }
 
     public static Boolean isNotificationEnabled(final Context ctx) {
@@ -171,13 +170,23 @@ public class UserPreferences extends PreferenceActivity {
     // }
 
     public static Boolean isFastInput(final Context ctx) {
-        final SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(ctx);
-        return prefs.getBoolean(PrefItem.FAST_INPUT.getKey(), false);
+        return PreferenceSnapshot.get(ctx).isFastInput();
     }
 
     public static Boolean isCommentEnabled(final Context ctx) {
+        return PreferenceSnapshot.get(ctx).isCommentEnabled();
+    }
+
+    /**
+     * @return deflate level for exported files, 0 for none
+     */
+    public static int getExportCompression(final Context ctx) {
         final SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(ctx);
-        return prefs.getBoolean(PrefItem.COMMENTS.getKey(), false);
+        try {
+            return Integer.parseInt(prefs.getString(PrefItem.EXPORT_COMPRESSION.getKey(), "0"));
+        } catch (final NumberFormatException e) {
+            return 0;
+        }
     }
 
     public static Boolean isEnabled(final MeasureType type, final Context ctx) {
@@ -186,9 +195,7 @@ public class UserPreferences extends PreferenceActivity {
             Log.w(LOG_TAG, "isEnabled but item is null for " + type);
             return false;
         } else {
-            Log.d(LOG_TAG, "isEnabled " + item);
-            final SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(ctx);
-            return prefs.getBoolean(item.getKey(), false);
+            return PreferenceSnapshot.get(ctx).isEnabled(item);
         }
     }
 
@@ -212,11 +219,11 @@ public class UserPreferences extends PreferenceActivity {
     }
 
     public static List<MeasureType> getTrackedTypes(final Context ctx) {
-        final SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(ctx);
+        final PreferenceSnapshot prefs = PreferenceSnapshot.get(ctx);
         final List<MeasureType> result = new ArrayList<MeasureType>();
         for (final PrefItem item : PrefItem.values()) {
             if (item.getTrackingType() != null) {
-                if (prefs.getBoolean(item.getKey(), false)) {
+                if (prefs.isEnabled(item)) {
                     result.add(item.getTrackingType());
                 }
             }
@@ -226,11 +233,11 @@ public class UserPreferences extends PreferenceActivity {
     }
 
     public static Map<MeasureType, Boolean> getTracking(final Context ctx) {
-        final SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(ctx);
+        final PreferenceSnapshot prefs = PreferenceSnapshot.get(ctx);
         final Map<MeasureType, Boolean> result = new HashMap<MeasureType, Boolean>();
         for (final PrefItem item : PrefItem.values()) {
             if (item.getTrackingType() != null) {
-                result.put(item.getTrackingType(), prefs.getBoolean(item.getKey(), false));
+                result.put(item.getTrackingType(), prefs.isEnabled(item));
             }
         }
         result.put(MeasureType.WEIGHT, true);
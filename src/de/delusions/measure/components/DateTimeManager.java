@@ -1,5 +1,6 @@
 package de.delusions.measure.components;
 
+import java.text.SimpleDateFormat;
 import java.util.Calendar;
 
 import android.app.Activity;
@@ -61,11 +62,11 @@ public class DateTimeManager {
 
     public static void populateDateButton(Measurement measure,Activity activity) {
         final TextView showDatePickerButton = (TextView) activity.findViewById(R.id.entryDate);
-        showDatePickerButton.setText(MeasureCursorAdapter.DATE_FORMAT.format(measure.getTimestamp()));
+        showDatePickerButton.setText(new SimpleDateFormat(MeasureCursorAdapter.DAY_MONTH_YEAR).format(measure.getTimestamp()));
     }
 
     public static void populateTimeButton(Measurement measure,Activity activity) {
         final TextView timePickerButton = (TextView) activity.findViewById(R.id.entryTime);
-        timePickerButton.setText(MeasureCursorAdapter.TIME_FORMAT.format(measure.getTimestamp()));
+        timePickerButton.setText(new SimpleDateFormat(MeasureCursorAdapter.HOUR_MINUTE).format(measure.getTimestamp()));
     }
 }
@@ -31,7 +31,7 @@ import android.widget.RelativeLayout;
 import android.widget.TextView;
 import de.delusions.measure.MeasureActivity;
 import de.delusions.measure.R;
-import de.delusions.measure.activities.prefs.UserPreferences;
+import de.delusions.measure.activities.prefs.PreferenceSnapshot;
 import de.delusions.measure.ment.Measurement;
 import de.delusions.measure.ment.MeasurementException;
 
@@ -106,7 +106,7 @@ public class InputRecorder extends RelativeLayout {
     }
 
     private boolean isMetric() {
-        return UserPreferences.isMetric(this.context);
+        return PreferenceSnapshot.get(this.context).isMetric();
     }
 
     public void rewriteText() {
@@ -145,7 +145,7 @@ public class InputRecorder extends RelativeLayout {
                         final EditText input = (EditText) textEntryView.findViewById(R.id.dialoginput);
                         final String strValue = input.getText().toString();
                         try {
-                            InputRecorder.this.currentMeasure.parseAndSetValue(strValue, UserPreferences.isMetric(InputRecorder.this.context));
+                            InputRecorder.this.currentMeasure.parseAndSetValue(strValue, isMetric());
                             rewriteText();
                         } catch (final MeasurementException e) {
                             e.createToast(InputRecorder.this.context, "InputRecorder.editCurrent");
@@ -0,0 +1,330 @@
+/*
+   Copyright 2013 Sonja Pieper
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package de.delusions.measure.database;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import android.database.Cursor;
+import de.delusions.measure.ment.MeasureType;
+import de.delusions.measure.ment.Measurement;
+
+/**
+ * Compact backup of all measures. After the magic number the file is a sequence of blocks, each one written as its length,
+ * its bytes and a CRC32 of the bytes:
+ * <ol>
+ * <li>header: format version, schema version of the database, creation time, number of type blocks</li>
+ * <li>string table: all distinct comments</li>
+ * <li>one block per type: name, number of entries, then per entry the date as difference to the previous one, the value
+ * and the index of the comment in the string table or 0</li>
+ * </ol>
+ * Numbers are unsigned varints, differences are zigzag encoded first. A value is stored as difference of hundredths to the
+ * previous value if it has no more than two decimals, otherwise as its raw bits after an escape, so nothing is lost.
+ */
+final class BinaryBackup {
+
+    static final String FILE_NAME = "data.dwb";
+
+    private static final int MAGIC = 0x44574231; // DWB1
+    private static final int FORMAT_VERSION = 1;
+    private static final long ESCAPE_RAW_VALUE = 1;
+
+    private BinaryBackup() {
+    }
+
+    /**
+     * Writes all rows of the cursor, which has to be ordered by type and date.
+     * 
+     * @return the number of measures written
+     */
+    static int write(final Cursor cursor, final int schemaVersion, final OutputStream out) throws IOException {
+        final int nameColumn = cursor.getColumnIndexOrThrow(SqliteHelper.KEY_NAME);
+        final int dateColumn = cursor.getColumnIndexOrThrow(SqliteHelper.KEY_DATE);
+        final int valueColumn = cursor.getColumnIndexOrThrow(SqliteHelper.KEY_MEASURE_VALUE);
+        final int commentColumn = cursor.getColumnIndexOrThrow(SqliteHelper.KEY_COMMENT);
+
+        final Map<String, Integer> strings = new LinkedHashMap<String, Integer>();
+        final List<Block> types = new ArrayList<Block>();
+        final Block entries = new Block();
+        String name = null;
+        int count = 0;
+        int written = 0;
+        long lastDate = 0;
+        long lastValue = 0;
+        while (cursor.moveToNext()) {
+            final String rowName = cursor.getString(nameColumn);
+            if (!rowName.equals(name)) {
+                if (name != null) {
+                    types.add(typeBlock(name, count, entries));
+                }
+                name = rowName;
+                count = 0;
+                lastDate = 0;
+                lastValue = 0;
+                entries.reset();
+            }
+            final long date = cursor.getLong(dateColumn);
+            entries.writeSigned(date - lastDate);
+            lastDate = date;
+
+            final float value = cursor.getFloat(valueColumn);
+            final long hundredths = Math.round(value * 100d);
+            if ((float) (hundredths / 100d) == value) {
+                entries.writeVarint(zigzag(hundredths - lastValue) << 1);
+                lastValue = hundredths;
+            } else {
+                entries.writeVarint(ESCAPE_RAW_VALUE);
+                entries.writeFixed(Float.floatToIntBits(value));
+            }
+
+            final String comment = cursor.getString(commentColumn);
+            if (comment == null || comment.length() == 0) {
+                entries.writeVarint(0);
+            } else {
+                Integer index = strings.get(comment);
+                if (index == null) {
+                    index = strings.size() + 1;
+                    strings.put(comment, index);
+                }
+                entries.writeVarint(index);
+            }
+            count++;
+            written++;
+        }
+        if (name != null) {
+            types.add(typeBlock(name, count, entries));
+        }
+
+        final DataOutputStream data = new DataOutputStream(out);
+        data.writeInt(MAGIC);
+        final Block header = new Block();
+        header.writeVarint(FORMAT_VERSION);
+        header.writeVarint(schemaVersion);
+        header.writeVarint(System.currentTimeMillis());
+        header.writeVarint(types.size());
+        header.writeTo(data);
+        final Block table = new Block();
+        table.writeVarint(strings.size());
+        for (final String string : strings.keySet()) {
+            table.writeString(string);
+        }
+        table.writeTo(data);
+        for (final Block type : types) {
+            type.writeTo(data);
+        }
+        data.flush();
+        return written;
+    }
+
+    private static Block typeBlock(final String name, final int count, final Block entries) throws IOException {
+        final Block block = new Block();
+        block.writeString(name);
+        block.writeVarint(count);
+        entries.writeTo(block);
+        return block;
+    }
+
+    /**
+     * Reads and checks the whole backup before anything is returned.
+     * 
+     * @return the measures of all known types
+     * @throws IOException
+     *             if the file is no backup, of a newer format or damaged
+     */
+    static List<Measurement> read(final InputStream in) throws IOException {
+        final DataInputStream data = new DataInputStream(in);
+        if (data.readInt() != MAGIC) {
+            throw new IOException("no backup file");
+        }
+        final Input header = Input.readBlock(data);
+        final long formatVersion = header.readVarint();
+        if (formatVersion > FORMAT_VERSION) {
+            throw new IOException("backup format " + formatVersion + " is not supported");
+        }
+        header.readVarint(); // schema version, the format does not depend on it yet
+        header.readVarint(); // creation time
+        final long typeCount = header.readVarint();
+
+        final Input table = Input.readBlock(data);
+        final String[] strings = new String[(int) table.readVarint() + 1];
+        for (int i = 1; i < strings.length; i++) {
+            strings[i] = table.readString();
+        }
+
+        final List<Measurement> measurements = new ArrayList<Measurement>();
+        for (int t = 0; t < typeCount; t++) {
+            final Input block = Input.readBlock(data);
+            final MeasureType type = MeasureType.valueOf(block.readString());
+            final long count = block.readVarint();
+            long date = 0;
+            long hundredths = 0;
+            for (int i = 0; i < count; i++) {
+                date += block.readSigned();
+                final long tag = block.readVarint();
+                final float value;
+                if (tag == ESCAPE_RAW_VALUE) {
+                    value = Float.intBitsToFloat(block.readFixed());
+                } else {
+                    hundredths += unzigzag(tag >>> 1);
+                    value = (float) (hundredths / 100d);
+                }
+                final int comment = (int) block.readVarint();
+                if (type != null) {
+                    final Measurement measurement = new Measurement();
+                    measurement.setField(type);
+                    measurement.setValue(value, true);
+                    measurement.setTimestamp(new Date(date));
+                    measurement.setComment(strings[comment]);
+                    measurements.add(measurement);
+                }
+            }
+        }
+        return measurements;
+    }
+
+    private static long zigzag(final long n) {
+        return n << 1 ^ n >> 63;
+    }
+
+    private static long unzigzag(final long n) {
+        return n >>> 1 ^ -(n & 1);
+    }
+
+    /**
+     * Bytes of one block while it is written.
+     */
+    private static final class Block extends ByteArrayOutputStream {
+
+        void writeVarint(long n) {
+            while ((n & ~0x7FL) != 0) {
+                write((int) (n & 0x7F | 0x80));
+                n >>>= 7;
+            }
+            write((int) n);
+        }
+
+        void writeSigned(final long n) {
+            writeVarint(zigzag(n));
+        }
+
+        void writeFixed(final int n) {
+            write(n >>> 24);
+            write(n >>> 16);
+            write(n >>> 8);
+            write(n);
+        }
+
+        void writeString(final String s) throws IOException {
+            final byte[] bytes = s.getBytes("UTF-8");
+            writeVarint(bytes.length);
+            write(bytes);
+        }
+
+        void writeTo(final DataOutputStream out) throws IOException {
+            final CRC32 crc = new CRC32();
+            crc.update(this.buf, 0, this.count);
+            final Block length = new Block();
+            length.writeVarint(this.count);
+            out.write(length.buf, 0, length.count);
+            out.write(this.buf, 0, this.count);
+            out.writeInt((int) crc.getValue());
+        }
+    }
+
+    /**
+     * Bytes of one block after its checksum has been verified.
+     */
+    private static final class Input {
+
+        private final byte[] bytes;
+        private int pos;
+
+        private Input(final byte[] bytes) {
+            this.bytes = bytes;
+        }
+
+        static Input readBlock(final DataInputStream in) throws IOException {
+            long length = 0;
+            for (int shift = 0;; shift += 7) {
+                final int b = in.readUnsignedByte();
+                length |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    break;
+                }
+                if (shift > 28) {
+                    throw new IOException("damaged block length");
+                }
+            }
+            final byte[] bytes = new byte[(int) length];
+            in.readFully(bytes);
+            final CRC32 crc = new CRC32();
+            crc.update(bytes);
+            if (in.readInt() != (int) crc.getValue()) {
+                throw new IOException("checksum mismatch");
+            }
+            return new Input(bytes);
+        }
+
+        long readVarint() throws IOException {
+            long result = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                if (this.pos == this.bytes.length) {
+                    throw new IOException("block too short");
+                }
+                final int b = this.bytes[this.pos++];
+                result |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return result;
+                }
+            }
+            throw new IOException("damaged varint");
+        }
+
+        long readSigned() throws IOException {
+            return unzigzag(readVarint());
+        }
+
+        int readFixed() throws IOException {
+            if (this.pos + 4 > this.bytes.length) {
+                throw new IOException("block too short");
+            }
+            final int result = (this.bytes[this.pos] & 0xFF) << 24 | (this.bytes[this.pos + 1] & 0xFF) << 16 | (this.bytes[this.pos + 2] & 0xFF) << 8
+                    | this.bytes[this.pos + 3] & 0xFF;
+            this.pos += 4;
+            return result;
+        }
+
+        String readString() throws IOException {
+            final int length = (int) readVarint();
+            if (this.pos + length > this.bytes.length) {
+                throw new IOException("block too short");
+            }
+            final String result = new String(this.bytes, this.pos, length, "UTF-8");
+            this.pos += length;
+            return result;
+        }
+    }
+}
@@ -0,0 +1,274 @@
+/*
+   Copyright 2013 Sonja Pieper
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package de.delusions.measure.database;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Calendar;
+
+/**
+ * Reads the lines of an export file and splits them at '|' in one pass, without regular expressions and without creating
+ * a String per line. Fields are only turned into objects when asked for, numbers and dates are parsed from the characters.
+ */
+class ExportLineReader {
+
+    private static final char SEPARATOR = '|';
+    /** yyyy-MM-dd HH:mm:ss */
+    private static final int TIMESTAMP_LENGTH = 19;
+    private static final int[] DAYS_IN_MONTH = { 31, 29, 31, 30, 31, 30, 31, 31, 30, 31, 30, 31 };
+
+    private final Reader reader;
+    private final char[] chunk = new char[8192];
+    private int chunkPos;
+    private int chunkEnd;
+
+    private char[] line = new char[256];
+    private int length;
+    private int[] fieldEnds = new int[8];
+    private int fields;
+    private int lineNumber;
+
+    private final Calendar calendar = Calendar.getInstance();
+
+    ExportLineReader(final Reader reader) {
+        this(reader, 1);
+    }
+
+    /**
+     * @param firstLine
+     *            number of the first line read, for reading a part of a file
+     */
+    ExportLineReader(final Reader reader, final int firstLine) {
+        this.reader = reader;
+        this.lineNumber = firstLine - 1;
+    }
+
+    /**
+     * Moves to the next line.
+     * 
+     * @return false at the end of the file
+     */
+    boolean next() throws IOException {
+        this.length = 0;
+        this.fields = 0;
+        boolean read = false;
+        while (true) {
+            if (this.chunkPos == this.chunkEnd) {
+                this.chunkEnd = this.reader.read(this.chunk, 0, this.chunk.length);
+                this.chunkPos = 0;
+                if (this.chunkEnd <= 0) {
+                    this.chunkEnd = 0;
+                    if (!read) {
+                        return false;
+                    }
+                    break;
+                }
+            }
+            final char c = this.chunk[this.chunkPos++];
+            read = true;
+            if (c == '\n') {
+                break;
+            } else if (c == SEPARATOR) {
+                endField();
+            } else if (c != '\r') {
+                if (this.length == this.line.length) {
+                    final char[] grown = new char[this.line.length * 2];
+                    System.arraycopy(this.line, 0, grown, 0, this.length);
+                    this.line = grown;
+                }
+                this.line[this.length++] = c;
+            }
+        }
+        endField();
+        this.lineNumber++;
+        return true;
+    }
+
+    private void endField() {
+        if (this.fields == this.fieldEnds.length) {
+            final int[] grown = new int[this.fieldEnds.length * 2];
+            System.arraycopy(this.fieldEnds, 0, grown, 0, this.fields);
+            this.fieldEnds = grown;
+        }
+        this.fieldEnds[this.fields++] = this.length;
+    }
+
+    int getLineNumber() {
+        return this.lineNumber;
+    }
+
+    int getFieldCount() {
+        return this.fields;
+    }
+
+    private int start(final int field) {
+        return field == 0 ? 0 : this.fieldEnds[field - 1];
+    }
+
+    /**
+     * The offsets of fields behind the last one are left over from longer lines or not there at all.
+     */
+    private void checkField(final int field) {
+        if (field >= this.fields) {
+            throw new NumberFormatException("no field " + field + " in line " + this.lineNumber);
+        }
+    }
+
+    private int end(final int field) {
+        return this.fieldEnds[field];
+    }
+
+    /**
+     * @return true if the field is missing, empty or "null" as the old export wrote it
+     */
+    boolean isEmpty(final int field) {
+        return field >= this.fields || start(field) == end(field) || matchesIgnoreCase(field, "null");
+    }
+
+    boolean matches(final int field, final String text) {
+        if (field >= this.fields || end(field) - start(field) != text.length()) {
+            return false;
+        }
+        for (int i = start(field), j = 0; i < end(field); i++, j++) {
+            if (this.line[i] != text.charAt(j)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean matchesIgnoreCase(final int field, final String text) {
+        if (field >= this.fields || end(field) - start(field) != text.length()) {
+            return false;
+        }
+        for (int i = start(field), j = 0; i < end(field); i++, j++) {
+            if (Character.toLowerCase(this.line[i]) != Character.toLowerCase(text.charAt(j))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the field or null if it is empty
+     */
+    String getString(final int field) {
+        return isEmpty(field) ? null : new String(this.line, start(field), end(field) - start(field));
+    }
+
+    boolean getBoolean(final int field) {
+        return matchesIgnoreCase(field, "true");
+    }
+
+    long getLong(final int field) {
+        checkField(field);
+        return parseLong(start(field), end(field));
+    }
+
+    /**
+     * Parses plain decimals like "72.5" directly, anything else such as exponents goes to {@link Float#parseFloat(String)}.
+     */
+    float getFloat(final int field) {
+        checkField(field);
+        final int start = start(field);
+        final int end = end(field);
+        int i = start;
+        final boolean negative = i < end && this.line[i] == '-';
+        if (negative) {
+            i++;
+        }
+        long mantissa = 0;
+        int decimals = -1;
+        int digits = 0;
+        for (; i < end; i++) {
+            final char c = this.line[i];
+            if (c >= '0' && c <= '9' && digits < 18) {
+                mantissa = mantissa * 10 + c - '0';
+                digits++;
+                if (decimals >= 0) {
+                    decimals++;
+                }
+            } else if (c == '.' && decimals < 0) {
+                decimals = 0;
+            } else {
+                return Float.parseFloat(new String(this.line, start, end - start));
+            }
+        }
+        if (digits == 0) {
+            throw new NumberFormatException("no number in line " + this.lineNumber);
+        }
+        double value = mantissa;
+        for (int d = 0; d < decimals; d++) {
+            value /= 10;
+        }
+        return (float) (negative ? -value : value);
+    }
+
+    /**
+     * Parses a local time written as "yyyy-MM-dd HH:mm:ss". The fields are range checked here, the calendar would roll
+     * a date like the 31st of February over into March.
+     * 
+     * @return the time in milliseconds
+     * @throws NumberFormatException
+     *             if the field does not have that layout or is not a valid date
+     */
+    long getTimestamp(final int field) {
+        checkField(field);
+        final int s = start(field);
+        if (end(field) - s != TIMESTAMP_LENGTH || this.line[s + 4] != '-' || this.line[s + 7] != '-' || this.line[s + 10] != ' '
+                || this.line[s + 13] != ':' || this.line[s + 16] != ':') {
+            throw new NumberFormatException("no timestamp in line " + this.lineNumber);
+        }
+        final int year = (int) parseLong(s, s + 4);
+        final int month = (int) parseLong(s + 5, s + 7);
+        final int day = (int) parseLong(s + 8, s + 10);
+        final int hour = (int) parseLong(s + 11, s + 13);
+        final int minute = (int) parseLong(s + 14, s + 16);
+        final int second = (int) parseLong(s + 17, s + 19);
+        final boolean leap = year % 4 == 0 && (year % 100 != 0 || year % 400 == 0);
+        if (month < 1 || month > 12 || day < 1 || day > DAYS_IN_MONTH[month - 1] || month == 2 && day == 29 && !leap || hour < 0
+                || hour > 23 || minute < 0 || minute > 59 || second < 0 || second > 59) {
+            throw new NumberFormatException("no valid timestamp in line " + this.lineNumber);
+        }
+        this.calendar.clear();
+        this.calendar.set(year, month - 1, day, hour, minute, second);
+        return this.calendar.getTimeInMillis();
+    }
+
+    private long parseLong(final int start, final int end) {
+        int i = start;
+        final boolean negative = i < end && this.line[i] == '-';
+        if (negative) {
+            i++;
+        }
+        if (i == end) {
+            throw new NumberFormatException("no number in line " + this.lineNumber);
+        }
+        long result = 0;
+        for (; i < end; i++) {
+            final char c = this.line[i];
+            if (c < '0' || c > '9') {
+                throw new NumberFormatException("no number in line " + this.lineNumber);
+            }
+            result = result * 10 + c - '0';
+        }
+        return negative ? -result : result;
+    }
+
+    void close() throws IOException {
+        this.reader.close();
+    }
+}
@@ -0,0 +1,316 @@
+/*
+   Copyright 2013 Sonja Pieper
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package de.delusions.measure.database;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.util.Log;
+import de.delusions.measure.ment.MeasureType;
+import de.delusions.measure.ment.Measurement;
+import de.delusions.measure.ment.MeasurementException;
+import de.delusions.measure.ment.MeasurementException.ErrorId;
+
+/**
+ * Imports an export file in three stages: the calling thread cuts the file into blocks of whole lines, a few workers parse
+ * the blocks into batches and the single writer thread of {@link SqliteHelper} inserts each batch in one transaction. The
+ * batches are written in the order of their blocks, so the new rows keep the order of the file. Only a fixed number of
+ * blocks is in flight, reading waits until one of them has been written. Lines that cannot be read are collected with
+ * their line number and skipped.
+ */
+class ImportPipeline {
+
+    private static final String TAG = ImportPipeline.class.getSimpleName();
+
+    private static final int PARSE_THREADS = 2;
+    private static final int BLOCKS_IN_FLIGHT = 4;
+    private static final int BLOCK_SIZE = 32 * 1024;
+    /** errors kept for the log, all of them are counted */
+    private static final int MAX_ERRORS = 100;
+    /**
+     * Files without the millis column wrote their dates with a 12 hour clock and no AM/PM, so afternoon entries come back
+     * shifted by this much.
+     */
+    private static final long HALF_DAY = 12 * 60 * 60 * 1000L;
+
+    /**
+     * Informed from the worker threads after each written batch.
+     */
+    interface Progress {
+
+        void onImported(int total);
+    }
+
+    /**
+     * A line that could not be imported.
+     */
+    static final class LineError {
+
+        final int line;
+        final ErrorId id;
+
+        LineError(final int line, final ErrorId id) {
+            this.line = line;
+            this.id = id;
+        }
+
+        @Override
+        public String toString() {
+            return "line " + this.line + ": " + this.id;
+        }
+    }
+
+    private final SqliteHelper db;
+    private final Progress progress;
+    private final Semaphore blocks = new Semaphore(BLOCKS_IN_FLIGHT);
+    private final AtomicInteger imported = new AtomicInteger();
+    private final AtomicInteger errorCount = new AtomicInteger();
+    /** guards nextWrite, the number of the block whose batch is written next */
+    private final Object writeTurn = new Object();
+    private int nextWrite;
+    private final List<LineError> errors = new ArrayList<LineError>();
+    private volatile boolean cancelled;
+    private volatile boolean millisColumn;
+    private Set<MeasureKey> known;
+    /** only for files without the millis column: what was in the database before the import */
+    private Set<MeasureKey> existingKeys;
+    private Set<Long> existingIds;
+
+    ImportPipeline(final SqliteHelper db, final Progress progress) {
+        this.db = db;
+        this.progress = progress;
+    }
+
+    /**
+     * Reads the whole source and returns once every batch has been written or the import was cancelled. If reading fails,
+     * the blocks already handed out are still written before the exception is passed on, so the caller may close the
+     * database right away.
+     * 
+     * @return the number of measures created
+     */
+    int run(final Reader source) throws IOException {
+        final Set<MeasureKey> keys = this.db.fetchMeasureKeys();
+        this.known = Collections.synchronizedSet(keys);
+        final ExecutorService workers = Executors.newFixedThreadPool(PARSE_THREADS);
+        try {
+            final char[] block = new char[BLOCK_SIZE];
+            final StringBuilder pending = new StringBuilder(2 * BLOCK_SIZE);
+            boolean first = true;
+            int line = 1;
+            int sequence = 0;
+            int read;
+            while (!this.cancelled && (read = source.read(block)) > 0) {
+                pending.append(block, 0, read);
+                final int end = pending.lastIndexOf("\n") + 1;
+                if (end > 0) {
+                    final String lines = pending.substring(0, end);
+                    pending.delete(0, end);
+                    if (first) {
+                        readHeader(lines, keys);
+                        first = false;
+                    }
+                    submit(workers, lines, line, sequence++);
+                    line += countLines(lines);
+                }
+            }
+            if (!this.cancelled && pending.length() > 0) {
+                if (first) {
+                    readHeader(pending.toString(), keys);
+                }
+                submit(workers, pending.toString(), line, sequence);
+            }
+        } finally {
+            workers.shutdown();
+            this.blocks.acquireUninterruptibly(BLOCKS_IN_FLIGHT);
+            this.blocks.release(BLOCKS_IN_FLIGHT);
+        }
+        Log.d(TAG, "imported " + this.imported.get() + ", errors " + this.errorCount.get() + (this.cancelled ? ", cancelled" : ""));
+        return this.imported.get();
+    }
+
+    /**
+     * Runs before the first block is handed to the workers, which see the fields set here.
+     */
+    private void readHeader(final String lines, final Set<MeasureKey> keys) throws IOException {
+        final ExportLineReader header = new ExportLineReader(new StringReader(lines));
+        if (header.next() && SqliteExport.isHeader(header)) {
+            this.millisColumn = SqliteExport.hasMillisColumn(header);
+        }
+        if (!this.millisColumn) {
+            this.existingKeys = new HashSet<MeasureKey>(keys);
+            this.existingIds = this.db.fetchMeasureIds();
+        }
+    }
+
+    /**
+     * Dates of files without the millis column may be 12 hours off, so such a line is also known if its id is in the
+     * database, as older versions checked, or if the database has the same value 12 hours earlier or later.
+     */
+    private boolean isKnownOldFormat(final Measurement measurement) {
+        if (measurement.getId() != null && this.existingIds.contains(measurement.getId())) {
+            return true;
+        }
+        final String name = measurement.getField().name();
+        final long date = measurement.getTimestamp().getTime();
+        return this.existingKeys.contains(new MeasureKey(name, date - HALF_DAY, measurement.getValue()))
+                || this.existingKeys.contains(new MeasureKey(name, date + HALF_DAY, measurement.getValue()));
+    }
+
+    private static int countLines(final String lines) {
+        int count = 0;
+        for (int i = 0; i < lines.length(); i++) {
+            if (lines.charAt(i) == '\n') {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Hands a block to the workers. Blocks are parsed in parallel, but the batch of a block is only written after the
+     * batches of all blocks before it. The workers take blocks in order, so the block whose turn it is has always been
+     * started.
+     */
+    private void submit(final ExecutorService workers, final String lines, final int firstLine, final int sequence) {
+        this.blocks.acquireUninterruptibly();
+        workers.execute(new Runnable() {
+
+            public void run() {
+                try {
+                    final List<Measurement> batch = parseBlock(lines, firstLine);
+                    awaitTurn(sequence);
+                    if (!ImportPipeline.this.cancelled && !batch.isEmpty()) {
+                        final int total = ImportPipeline.this.imported.addAndGet(ImportPipeline.this.db.createMeasures(batch));
+                        ImportPipeline.this.progress.onImported(total);
+                    }
+                } catch (final RuntimeException e) {
+                    Log.e(TAG, "import of block at line " + firstLine + " failed", e);
+                    addError(firstLine, ErrorId.DATABASE_ERROR);
+                } finally {
+                    awaitTurn(sequence);
+                    synchronized (ImportPipeline.this.writeTurn) {
+                        ImportPipeline.this.nextWrite++;
+                        ImportPipeline.this.writeTurn.notifyAll();
+                    }
+                    ImportPipeline.this.blocks.release();
+                }
+            }
+        });
+    }
+
+    /**
+     * Waits until the batches of all blocks before the given one have been written.
+     */
+    private void awaitTurn(final int sequence) {
+        boolean interrupted = false;
+        synchronized (this.writeTurn) {
+            while (this.nextWrite != sequence) {
+                try {
+                    this.writeTurn.wait();
+                } catch (final InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private List<Measurement> parseBlock(final String lines, final int firstLine) {
+        final ExportLineReader reader = new ExportLineReader(new StringReader(lines), firstLine);
+        final List<Measurement> batch = new ArrayList<Measurement>();
+        MeasureType lastType = null;
+        try {
+            while (!this.cancelled && reader.next()) {
+                if (reader.getFieldCount() <= 1 || SqliteExport.isHeader(reader)) {
+                    continue;
+                }
+                try {
+                    final Measurement measurement = SqliteExport.readMeasurement(reader, this.millisColumn, lastType);
+                    lastType = measurement.getField();
+                    if (!this.millisColumn && isKnownOldFormat(measurement)) {
+                        continue;
+                    }
+                    if (this.known.add(new MeasureKey(measurement))) {
+                        batch.add(measurement);
+                    }
+                } catch (final MeasurementException e) {
+                    addError(reader.getLineNumber(), e.getId());
+                }
+            }
+        } catch (final IOException e) {
+            // reading from a string does not fail
+        }
+        return batch;
+    }
+
+    private void addError(final int line, final ErrorId id) {
+        this.errorCount.incrementAndGet();
+        synchronized (this.errors) {
+            if (this.errors.size() < MAX_ERRORS) {
+                this.errors.add(new LineError(line, id));
+            }
+        }
+    }
+
+    /**
+     * Stops reading and parsing, batches that are already being written are still committed.
+     */
+    void cancel() {
+        this.cancelled = true;
+    }
+
+    boolean isCancelled() {
+        return this.cancelled;
+    }
+
+    int getImported() {
+        return this.imported.get();
+    }
+
+    int getErrorCount() {
+        return this.errorCount.get();
+    }
+
+    /**
+     * @return the first errors ordered by line number
+     */
+    List<LineError> getErrors() {
+        final List<LineError> result;
+        synchronized (this.errors) {
+            result = new ArrayList<LineError>(this.errors);
+        }
+        Collections.sort(result, new Comparator<LineError>() {
+
+            public int compare(final LineError a, final LineError b) {
+                return a.line < b.line ? -1 : a.line == b.line ? 0 : 1;
+            }
+        });
+        return result;
+    }
+}
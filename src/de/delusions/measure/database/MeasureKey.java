@@ -0,0 +1,56 @@
+/*
+   Copyright 2013 Sonja Pieper
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package de.delusions.measure.database;
+
+import de.delusions.measure.ment.Measurement;
+
+/**
+ * Identifies a measure by type, date and value instead of by row id, which differs between devices. Values are compared
+ * in hundredths of the metric unit, a value that went through an imperial export does not come back bit for bit.
+ */
+final class MeasureKey {
+
+    private final String name;
+    private final long date;
+    private final long value;
+
+    MeasureKey(final String name, final long date, final float metricValue) {
+        this.name = name;
+        this.date = date;
+        this.value = Math.round(metricValue * 100d);
+    }
+
+    MeasureKey(final Measurement measurement) {
+        this(measurement.getField().name(), measurement.getTimestamp().getTime(), measurement.getValue());
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+        if (!(o instanceof MeasureKey)) {
+            return false;
+        }
+        final MeasureKey other = (MeasureKey) o;
+        return this.date == other.date && this.value == other.value && this.name.equals(other.name);
+    }
+
+    @Override
+    public int hashCode() {
+        int result = this.name.hashCode();
+        result = 31 * result + (int) (this.date ^ this.date >>> 32);
+        result = 31 * result + (int) (this.value ^ this.value >>> 32);
+        return result;
+    }
+}
@@ -0,0 +1,171 @@
+/*
+   Copyright 2013 Sonja Pieper
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package de.delusions.measure.database;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import android.database.AbstractCursor;
+import android.database.Cursor;
+import android.database.DataSetObservable;
+import android.database.DataSetObserver;
+
+/**
+ * Pages of the same query shown as one cursor that can grow. Unlike a MergeCursor that has to be replaced, and with it all
+ * pages closed, pages are added in place and registered observers such as a CursorAdapter are told about the new rows.
+ * All pages need the same columns.
+ */
+public class PagedCursor extends AbstractCursor {
+
+    private final List<Cursor> pages = new ArrayList<Cursor>();
+    private final DataSetObservable pageObservers = new DataSetObservable();
+    private final int pageSize;
+    private int count;
+    private Cursor current;
+    private boolean complete;
+    private long[] nextPageKey;
+
+    /**
+     * @param firstPage
+     *            the first page, it decides about the column names
+     * @param pageSize
+     *            the number of rows requested per page, a shorter page is the last one
+     */
+    public PagedCursor(final Cursor firstPage, final int pageSize) {
+        this.pageSize = pageSize;
+        append(firstPage);
+    }
+
+    /**
+     * Adds the rows of the next page at the end and informs the observers.
+     */
+    public void addPage(final Cursor page) {
+        append(page);
+        this.pageObservers.notifyChanged();
+    }
+
+    /**
+     * Takes the key of the next page from the last row before the page becomes visible, afterwards only
+     * {@link #onMove(int, int)} moves the pages.
+     */
+    private void append(final Cursor page) {
+        this.pages.add(page);
+        this.count += page.getCount();
+        this.complete = page.getCount() < this.pageSize;
+        if (page.moveToLast()) {
+            this.nextPageKey = new long[] { page.getLong(page.getColumnIndexOrThrow(SqliteHelper.KEY_DATE)),
+                    page.getLong(page.getColumnIndexOrThrow(SqliteHelper.KEY_ROWID)) };
+        }
+    }
+
+    /**
+     * @return true if the last page was shorter than requested, there is nothing more to load
+     */
+    public boolean isComplete() {
+        return this.complete;
+    }
+
+    /**
+     * @return date and id of the last row, the key for loading the next page, or null if there are no rows
+     */
+    public long[] getNextPageKey() {
+        return this.nextPageKey;
+    }
+
+    @Override
+    public boolean onMove(final int oldPosition, final int newPosition) {
+        int start = 0;
+        for (final Cursor page : this.pages) {
+            if (newPosition < start + page.getCount()) {
+                this.current = page;
+                return page.moveToPosition(newPosition - start);
+            }
+            start += page.getCount();
+        }
+        this.current = null;
+        return false;
+    }
+
+    @Override
+    public int getCount() {
+        return this.count;
+    }
+
+    @Override
+    public String[] getColumnNames() {
+        return this.pages.get(0).getColumnNames();
+    }
+
+    @Override
+    public String getString(final int column) {
+        return this.current.getString(column);
+    }
+
+    @Override
+    public short getShort(final int column) {
+        return this.current.getShort(column);
+    }
+
+    @Override
+    public int getInt(final int column) {
+        return this.current.getInt(column);
+    }
+
+    @Override
+    public long getLong(final int column) {
+        return this.current.getLong(column);
+    }
+
+    @Override
+    public float getFloat(final int column) {
+        return this.current.getFloat(column);
+    }
+
+    @Override
+    public double getDouble(final int column) {
+        return this.current.getDouble(column);
+    }
+
+    @Override
+    public boolean isNull(final int column) {
+        return this.current.isNull(column);
+    }
+
+    @Override
+    public byte[] getBlob(final int column) {
+        return this.current.getBlob(column);
+    }
+
+    @Override
+    public void registerDataSetObserver(final DataSetObserver observer) {
+        super.registerDataSetObserver(observer);
+        this.pageObservers.registerObserver(observer);
+    }
+
+    @Override
+    public void unregisterDataSetObserver(final DataSetObserver observer) {
+        super.unregisterDataSetObserver(observer);
+        this.pageObservers.unregisterObserver(observer);
+    }
+
+    @Override
+    public void close() {
+        for (final Cursor page : this.pages) {
+            page.close();
+        }
+        super.close();
+    }
+}
@@ -16,12 +16,18 @@
 package de.delusions.measure.database;
 
 import java.io.*;
-import java.text.ParseException;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.GZIPInputStream;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.GZIPOutputStream;
 
 import android.app.Activity;
 import android.app.ProgressDialog;
+import android.content.DialogInterface;
 import android.database.Cursor;
 import android.os.AsyncTask;
 import android.os.Environment;
@@ -34,15 +40,23 @@ import de.delusions.measure.ment.MeasureType;
 import de.delusions.measure.ment.Measurement;
 import de.delusions.measure.ment.MeasurementException;
 
-public class SqliteExport extends AsyncTask<Boolean, Void, Integer> {
+public class SqliteExport extends AsyncTask<Boolean, Integer, Integer> implements ImportPipeline.Progress {
 
     private static final String TAG = SqliteExport.class.getSimpleName();
 
     private final static String EXPORT_DIR = "droidweight";
     private final static String EXPORT_FILE_NAME = "data.csv";
-    private final static String EXPORT_FILE_HEADER = "value|type|date|metric|id|comment";
-    private final static String DATE_STRING = "yyyy-MM-dd hh:mm:ss";
-    private final static SimpleDateFormat DATE_FORMAT = new SimpleDateFormat(DATE_STRING);
+    /** appended to the names of text files written with compression */
+    private final static String GZIP_SUFFIX = ".gz";
+    private final static int GZIP_MAGIC_1 = 0x1f;
+    private final static int GZIP_MAGIC_2 = 0x8b;
+    /** version 2 adds the date in milliseconds at the end, older versions ignore it */
+    private final static String EXPORT_FILE_HEADER = "value|type|date|metric|id|comment|millis";
+    private final static String DATE_STRING = "yyyy-MM-dd HH:mm:ss";
+    /** the changes file has the columns of the export file and the operation of the journal entry */
+    private final static String CHANGES_FILE_HEADER = EXPORT_FILE_HEADER + "|op";
+    /** name of the watermark of text exports, a full export includes all changes */
+    private final static String JOURNAL_READER = "export";
 
     private final static int VALUE_POS = 0;
     private final static int TYPE_POS = 1;
@@ -50,6 +64,9 @@ public class SqliteExport extends AsyncTask<Boolean, Void, Integer> {
     private final static int METRIC_POS = 3;
     private final static int ID_POS = 4;
     private final static int COMMENT_POS = 5;
+    private final static int MILLIS_POS = 6;
+
+    private final static int BUFFER_SIZE = 64 * 1024;
 
     private final ProgressDialog dialog;
     private final SqliteHelper db;
@@ -58,25 +75,102 @@ public class SqliteExport extends AsyncTask<Boolean, Void, Integer> {
     private final Activity a;
     private final File exportFile;
     private final String modeStr;
+    private final Format format;
+    /** deflate level of text exports, 0 writes them uncompressed */
+    private final int compression;
+    /** last journal entry included in a text export */
+    private final long journalEnd;
+    /** last journal entry included in the previous text export */
+    private final long watermark;
+    private long startedAt;
+    private final AtomicBoolean dbClosed = new AtomicBoolean(false);
+    /** only for imports, which can be cancelled from the dialog */
+    private final ImportPipeline pipeline;
+
+    /**
+     * What is written or read.
+     */
+    public enum Format {
+        /** all measures as text */
+        CSV,
+        /** all measures in the compact {@link BinaryBackup} */
+        BACKUP,
+        /** the measures changed since the last text export, export only */
+        CHANGES
+    }
 
     public SqliteExport(final Activity a, final boolean export) throws MeasurementException {
+        this(a, export, Format.CSV);
+    }
+
+    public SqliteExport(final Activity a, final boolean export, final Format format) throws MeasurementException {
+        if (!export && format == Format.CHANGES) {
+            throw new IllegalArgumentException("changes can only be exported");
+        }
         this.a = a;
         this.export = export;
-        this.db = new SqliteHelper(a);
-        this.dialog = new ProgressDialog(a);
-        this.metric = UserPreferences.isMetric(a);
-        this.exportFile = openExportFile(export);
-        this.modeStr = this.a.getString(export ? R.string.exporter_export : R.string.exporter_import);
+        this.format = format;
+        this.db = SqliteHelper.getInstance(a);
+        boolean created = false;
+        try {
+            this.dialog = new ProgressDialog(a);
+            this.metric = UserPreferences.isMetric(a);
+            this.compression = export ? UserPreferences.getExportCompression(a) : 0;
+            final String suffix = this.compression > 0 ? GZIP_SUFFIX : "";
+            // the range is fixed before the rows are read, changes made during the export are exported again next time
+            this.journalEnd = export ? this.db.fetchJournalEnd() : 0;
+            this.watermark = export ? this.db.fetchWatermark(JOURNAL_READER) : 0;
+            if (format == Format.CHANGES) {
+                this.exportFile = openExportFile("changes-" + this.watermark + "-" + this.journalEnd + ".csv" + suffix, this.journalEnd > this.watermark);
+            } else if (format == Format.BACKUP) {
+                this.exportFile = openExportFile(BinaryBackup.FILE_NAME, export);
+            } else if (export) {
+                this.exportFile = openExportFile(EXPORT_FILE_NAME + suffix, true);
+            } else {
+                this.exportFile = findImportFile();
+            }
+            this.modeStr = this.a.getString(export ? R.string.exporter_export : R.string.exporter_import);
+            if (export || format != Format.CSV) {
+                this.pipeline = null;
+            } else {
+                this.pipeline = new ImportPipeline(this.db, this);
+                this.dialog.setCancelable(true);
+                this.dialog.setOnCancelListener(new DialogInterface.OnCancelListener() {
+
+                    public void onCancel(final DialogInterface dialog) {
+                        SqliteExport.this.pipeline.cancel();
+                        cancel(false);
+                    }
+                });
+            }
+            created = true;
+        } finally {
+            if (!created) {
+                closeDb();
+            }
+        }
+    }
+
+    /**
+     * Gives back the reference to the database once, whether the task ran, failed or was cancelled before it started.
+     */
+    private void closeDb() {
+        if (this.dbClosed.compareAndSet(false, true)) {
+            this.db.close();
+        }
     }
 
     @Override
     protected Integer doInBackground(final Boolean... export) {
         Log.d(TAG, "doInBackground started");
         try {
-            if (this.export) {
-                return exportMeasurements();
-            } else {
-                return importMeasurements();
+            switch (this.format) {
+            case BACKUP:
+                return this.export ? writeBackup() : restoreBackup();
+            case CHANGES:
+                return exportChanges();
+            default:
+                return this.export ? exportMeasurements() : importMeasurements();
             }
         } catch (final MeasurementException e) {
             return -1;
@@ -86,10 +180,20 @@ public class SqliteExport extends AsyncTask<Boolean, Void, Integer> {
 
     @Override
     protected void onPreExecute() {
+        this.startedAt = System.nanoTime();
         this.dialog.setMessage(String.format(this.a.getString(R.string.exporter_dialog_message), this.modeStr));
         this.dialog.show();
     }
 
+    @Override
+    protected void onProgressUpdate(final Integer... progress) {
+        this.dialog.setMessage(String.format(this.a.getString(R.string.exporter_dialog_progress), this.modeStr, progress[0]));
+    }
+
+    public void onImported(final int total) {
+        publishProgress(total);
+    }
+
     @Override
     protected void onPostExecute(final Integer success) {
         if (this.dialog.isShowing()) {
@@ -99,64 +203,97 @@ public class SqliteExport extends AsyncTask<Boolean, Void, Integer> {
             ((MeasureActivity) this.a).refreshListView();
         }
         if (success > 0) {
-            Toast.makeText(this.a, String.format(this.a.getString(R.string.exporter_toast_success), this.modeStr, success), Toast.LENGTH_SHORT)
-                    .show();
+            final long nanos = Math.max(1, System.nanoTime() - this.startedAt);
+            final long perSecond = success * 1000000000L / nanos;
+            Log.d(TAG, this.modeStr + " " + success + " entries in " + nanos / 1000000 + "ms");
+            Toast.makeText(this.a, String.format(this.a.getString(R.string.exporter_toast_success), this.modeStr, success, perSecond),
+                    Toast.LENGTH_SHORT).show();
+        } else if (success == 0 && this.format == Format.CHANGES) {
+            // errors return -1, no changes since the last export is not one
+            Toast.makeText(this.a, R.string.exporter_toast_nothing, Toast.LENGTH_SHORT).show();
         } else {
             Toast.makeText(this.a, String.format(this.a.getString(R.string.exporter_toast_fail), this.modeStr), Toast.LENGTH_SHORT).show();
         }
+        showImportErrors();
+    }
+
+    @Override
+    protected void onCancelled() {
+        // doInBackground does not run when the task is cancelled before it started
+        closeDb();
+        if (this.dialog.isShowing()) {
+            this.dialog.dismiss();
+        }
+        if (this.a instanceof MeasureActivity) {
+            ((MeasureActivity) this.a).refreshListView();
+        }
+        final int imported = this.pipeline != null ? this.pipeline.getImported() : 0;
+        Toast.makeText(this.a, String.format(this.a.getString(R.string.exporter_toast_cancelled), this.modeStr, imported), Toast.LENGTH_SHORT)
+                .show();
+        showImportErrors();
     }
 
+    private void showImportErrors() {
+        if (this.pipeline == null || this.pipeline.getErrorCount() == 0) {
+            return;
+        }
+        final List<ImportPipeline.LineError> errors = this.pipeline.getErrors();
+        for (final ImportPipeline.LineError error : errors) {
+            Log.w(TAG, "not imported: " + error);
+        }
+        Toast.makeText(this.a, String.format(this.a.getString(R.string.exporter_toast_errors), this.pipeline.getErrorCount(), errors.get(0).line),
+                Toast.LENGTH_LONG).show();
+    }
+
+    /**
+     * Streams all rows from the cursor into the file. Nothing is kept per row: the column indexes are looked up once, and
+     * the line, the date and its formatter are reused. Afterwards the journal is marked as exported.
+     */
     public Integer exportMeasurements() throws MeasurementException {
         Log.d(TAG, "exportMeasurements started");
         int numberOfMeasures = 0;
-        FileWriter writer = null;
+        Writer writer = null;
+        Cursor cursor = null;
         try {
-            writer = new FileWriter(this.exportFile);
-            writer.append(EXPORT_FILE_HEADER);
-            writer.append("\n");
-            Log.d(MeasureActivity.TAG, "exportMeasurements: header written");
-            final Cursor cursor = this.db.fetchAll();
-            Log.d(MeasureActivity.TAG, "exportMeasurements: " + cursor.getCount());
-            if (cursor.getCount() > 0) {
-                while (!cursor.isLast()) {
-                    cursor.moveToNext();
-                    final Measurement measurement = Measurement.create(cursor);
-                    writer.append(createLine(measurement, this.metric));
-                    numberOfMeasures++;
+            writer = openWriter();
+            writer.write(EXPORT_FILE_HEADER);
+            writer.write('\n');
+            cursor = this.db.fetchAll();
+            final LineFormat lineFormat = new LineFormat(cursor, SqliteHelper.KEY_ROWID);
+            while (cursor.moveToNext()) {
+                writer.append(lineFormat.format(cursor, null));
+                if (++numberOfMeasures % SqliteHelper.DEFAULT_CHUNK_SIZE == 0) {
+                    publishProgress(numberOfMeasures);
                 }
             }
+            writer.close();
+            writer = null;
+            this.db.markRead(JOURNAL_READER, this.journalEnd);
+            Log.d(TAG, "exportMeasurements: " + numberOfMeasures + " into " + this.exportFile.length() + " bytes");
         } catch (final IOException e) {
             Log.e(MeasureActivity.TAG, "Oops something bad happened", e);
         } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
             try {
                 if (writer != null) {
                     writer.close();
                 }
             } catch (final IOException e) { /* ignore */
             }
-            this.db.close();
+            closeDb();
         }
         return numberOfMeasures;
     }
 
     public int importMeasurements() throws MeasurementException {
         Log.d(TAG, "importMeasurements started");
-        LineNumberReader reader = null;
+        Reader reader = null;
         int result = 0;
         try {
-            reader = new LineNumberReader(new FileReader(this.exportFile));
-            String line = reader.readLine();
-            while (line != null) {
-                if (!line.startsWith("value")) { // header
-                    Log.d(TAG, "processing line " + line);
-                    final Measurement measurement = readLine(line);
-                    if (measurement != null && !this.db.exists(measurement)) {
-                        this.db.createMeasure(measurement);
-                        result++;
-                    }
-                }
-                line = reader.readLine();
-            }
+            reader = openReader();
+            result = this.pipeline.run(reader);
         } catch (final FileNotFoundException e) {
             throw new MeasurementException(MeasurementException.ErrorId.EXPORT_FILEMISSING);
         } catch (final IOException e) {
@@ -168,78 +305,271 @@ public class SqliteExport extends AsyncTask<Boolean, Void, Integer> {
                 }
             } catch (final IOException e) { /* ignore */
             }
-            this.db.close();
+            closeDb();
         }
         return result;
     }
 
-    public static String createLine(final Measurement measurement, final boolean metric) {
-        final int numberOfParts = 6;
-        final String[] parts = new String[numberOfParts];
-        parts[VALUE_POS] = Float.toString(measurement.getValue(metric));
-        parts[TYPE_POS] = measurement.getField().name();
-        parts[TIMESTAMP_POS] = DATE_FORMAT.format(measurement.getTimestamp());
-        parts[METRIC_POS] = Boolean.toString(metric);
-        parts[ID_POS] = measurement.getId() != null ? Long.toString(measurement.getId()) : "";
-        parts[COMMENT_POS] = measurement.getComment();
-
-        final StringBuffer line = new StringBuffer();
-        for (final String part : parts) {
-            line.append(part);
-            line.append("|");
+    /**
+     * Writes the measures changed since the last text export, one line per measure with its last operation: I for new
+     * measures, U for changed ones and D for deleted ones, which only have their id. A measure that was created and then
+     * changed since the last export is written as U, readers treat both I and U as insert or replace.
+     * 
+     * @return the number of changes written, 0 if nothing changed since the last export
+     * @throws MeasurementException
+     *             if the file could not be written
+     */
+    public int exportChanges() throws MeasurementException {
+        Log.d(TAG, "exportChanges started after " + this.watermark);
+        if (this.journalEnd <= this.watermark) {
+            closeDb();
+            return 0;
+        }
+        int numberOfChanges = 0;
+        Writer writer = null;
+        Cursor cursor = null;
+        try {
+            writer = openWriter();
+            writer.write(CHANGES_FILE_HEADER);
+            writer.write('\n');
+            cursor = this.db.fetchChanges(this.watermark, this.journalEnd);
+            final LineFormat lineFormat = new LineFormat(cursor, SqliteHelper.KEY_JOURNAL_MEASURE);
+            final int opColumn = cursor.getColumnIndexOrThrow(SqliteHelper.KEY_JOURNAL_OP);
+            while (cursor.moveToNext()) {
+                writer.append(lineFormat.format(cursor, cursor.getString(opColumn)));
+                if (++numberOfChanges % SqliteHelper.DEFAULT_CHUNK_SIZE == 0) {
+                    publishProgress(numberOfChanges);
+                }
+            }
+            writer.close();
+            writer = null;
+            this.db.markRead(JOURNAL_READER, this.journalEnd);
+            Log.d(TAG, "exportChanges: " + numberOfChanges);
+        } catch (final IOException e) {
+            Log.e(MeasureActivity.TAG, "exportChanges failed", e);
+            throw new MeasurementException(MeasurementException.ErrorId.EXPORT_FILECREATION, e.getMessage());
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+            try {
+                if (writer != null) {
+                    writer.close();
+                }
+            } catch (final IOException e) { /* ignore */
+            }
+            closeDb();
         }
-        line.append("\n");
-        return line.toString();
+        return numberOfChanges;
     }
 
-    public static Measurement readLine(final String line) throws MeasurementException {
-        if (!line.equals(EXPORT_FILE_HEADER)) {
-            Log.d(MeasureActivity.TAG, "parsing " + line);
-            final String[] parts = line.split("\\|");
-            final String value = retrieveStringFromLine(parts, VALUE_POS);
-            final MeasureType type = MeasureType.valueOf(retrieveStringFromLine(parts, TYPE_POS));
-            final boolean metric = Boolean.parseBoolean(retrieveStringFromLine(parts, METRIC_POS));
-            final Date date;
+    /**
+     * Opens the text file for writing, compressed if a level is set. The compressor writes straight to the file, its
+     * buffer and window bound the memory used whatever the size of the export.
+     */
+    private Writer openWriter() throws IOException {
+        final OutputStream out;
+        if (this.compression > 0) {
+            out = new LevelGZIPOutputStream(new FileOutputStream(this.exportFile), BUFFER_SIZE, this.compression);
+        } else {
+            out = new BufferedOutputStream(new FileOutputStream(this.exportFile), BUFFER_SIZE);
+        }
+        return new OutputStreamWriter(out, "UTF-8");
+    }
+
+    /**
+     * Opens the text file for reading, decompressing it if it starts like a gzip file whatever its name.
+     */
+    private Reader openReader() throws IOException {
+        InputStream in = new BufferedInputStream(new FileInputStream(this.exportFile), BUFFER_SIZE);
+        in.mark(2);
+        final boolean gzip = in.read() == GZIP_MAGIC_1 && in.read() == GZIP_MAGIC_2;
+        in.reset();
+        if (gzip) {
+            in = new GZIPInputStream(in, BUFFER_SIZE);
+        }
+        return new InputStreamReader(in, "UTF-8");
+    }
+
+    /**
+     * Sets the deflate level, which {@link GZIPOutputStream} keeps at the default.
+     */
+    private static final class LevelGZIPOutputStream extends GZIPOutputStream {
+
+        LevelGZIPOutputStream(final OutputStream out, final int size, final int level) throws IOException {
+            super(out, size);
+            this.def.setLevel(level);
+        }
+    }
+
+    /**
+     * Formats rows of a measure cursor as lines of the export file, reusing the line, the date and its formatter.
+     */
+    private final class LineFormat {
+
+        private final int valueColumn;
+        private final int typeColumn;
+        private final int dateColumn;
+        private final int idColumn;
+        private final int commentColumn;
+        private final SimpleDateFormat dateFormat = new SimpleDateFormat(DATE_STRING);
+        private final Date date = new Date();
+        private final StringBuilder line = new StringBuilder(128);
+
+        LineFormat(final Cursor cursor, final String idColumnName) {
+            this.valueColumn = cursor.getColumnIndexOrThrow(SqliteHelper.KEY_MEASURE_VALUE);
+            this.typeColumn = cursor.getColumnIndexOrThrow(SqliteHelper.KEY_NAME);
+            this.dateColumn = cursor.getColumnIndexOrThrow(SqliteHelper.KEY_DATE);
+            this.idColumn = cursor.getColumnIndexOrThrow(idColumnName);
+            this.commentColumn = cursor.getColumnIndexOrThrow(SqliteHelper.KEY_COMMENT);
+        }
+
+        /**
+         * @param op
+         *            operation for the changes file, null for the export file. Rows without a measure are written as
+         *            deleted.
+         */
+        CharSequence format(final Cursor cursor, final String op) {
+            this.line.setLength(0);
+            final String typeName = cursor.getString(this.typeColumn);
+            if (typeName == null) {
+                this.line.append("||||").append(cursor.getLong(this.idColumn)).append("|||");
+                if (op != null) {
+                    this.line.append(SqliteHelper.JOURNAL_DELETE).append('|');
+                }
+                return this.line.append('\n');
+            }
+            final MeasureType type = MeasureType.valueOf(typeName);
+            final float value = cursor.getFloat(this.valueColumn);
+            final long millis = cursor.getLong(this.dateColumn);
+            this.date.setTime(millis);
+            this.line.append(SqliteExport.this.metric || type == null ? value : type.getUnit().convertToImperial(value)).append('|');
+            this.line.append(typeName).append('|');
+            this.line.append(this.dateFormat.format(this.date)).append('|');
+            this.line.append(SqliteExport.this.metric).append('|');
+            this.line.append(cursor.getLong(this.idColumn)).append('|');
+            this.line.append(cursor.getString(this.commentColumn)).append('|');
+            this.line.append(millis).append('|');
+            if (op != null) {
+                this.line.append(op).append('|');
+            }
+            return this.line.append('\n');
+        }
+    }
+
+    /**
+     * Writes all measures into the compact backup file, values stay metric.
+     */
+    public int writeBackup() throws MeasurementException {
+        Log.d(TAG, "writeBackup started");
+        OutputStream out = null;
+        Cursor cursor = null;
+        try {
+            out = new BufferedOutputStream(new FileOutputStream(this.exportFile), BUFFER_SIZE);
+            cursor = this.db.fetchAllByType();
+            return BinaryBackup.write(cursor, SqliteHelper.DATABASE_VERSION, out);
+        } catch (final IOException e) {
+            Log.e(MeasureActivity.TAG, "writeBackup failed", e);
+            throw new MeasurementException(MeasurementException.ErrorId.EXPORT_FILECREATION, e.getMessage());
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
             try {
-                date = DATE_FORMAT.parse(retrieveStringFromLine(parts, TIMESTAMP_POS));
-            } catch (final ParseException e) {
-                throw new MeasurementException(MeasurementException.ErrorId.PARSEERROR_DATE, DATE_STRING);
+                if (out != null) {
+                    out.close();
+                }
+            } catch (final IOException e) { /* ignore */
             }
-            final String idString = retrieveStringFromLine(parts, ID_POS);
-            final Long id = idString != null ? Long.parseLong(idString) : -1l;
-            final String comment = retrieveStringFromLine(parts, COMMENT_POS);
-
-            final Measurement measurement = new Measurement();
-            measurement.setId(id);
-            measurement.setField(type);
-            measurement.setTimestamp(date);
-            measurement.parseAndSetValue(value, metric);
-            measurement.setComment(comment);
-            return measurement;
-        } else {
-            Log.d(MeasureActivity.TAG, "ignoring header");
-            return null;
+            closeDb();
         }
     }
 
-    private static String retrieveStringFromLine(final String[] parts, final int pos) {
-        final String result;
-        if (parts.length > pos) {
-            final String part = parts[pos];
-            if (part != null && !part.equals("") && !part.equals("null") && !part.equals("NULL")) {
-                result = part;
-            } else {
-                result = null;
+    /**
+     * Restores the compact backup. The whole file is read and checked first, so a damaged backup changes nothing. Measures
+     * that already exist are skipped like in the csv import.
+     */
+    public int restoreBackup() throws MeasurementException {
+        Log.d(TAG, "restoreBackup started");
+        InputStream in = null;
+        try {
+            in = new BufferedInputStream(new FileInputStream(this.exportFile), BUFFER_SIZE);
+            final List<Measurement> measurements = BinaryBackup.read(in);
+            final Set<MeasureKey> known = this.db.fetchMeasureKeys();
+            final List<Measurement> missing = new ArrayList<Measurement>(measurements.size());
+            for (final Measurement measurement : measurements) {
+                if (known.add(new MeasureKey(measurement))) {
+                    missing.add(measurement);
+                }
+            }
+            return this.db.createMeasures(missing);
+        } catch (final FileNotFoundException e) {
+            throw new MeasurementException(MeasurementException.ErrorId.EXPORT_FILEMISSING);
+        } catch (final IOException e) {
+            Log.e(MeasureActivity.TAG, "restoreBackup failed", e);
+            throw new MeasurementException(MeasurementException.ErrorId.EXPORT_READFILE);
+        } finally {
+            try {
+                if (in != null) {
+                    in.close();
+                }
+            } catch (final IOException e) { /* ignore */
             }
+            closeDb();
+        }
+    }
+
+    static boolean isHeader(final ExportLineReader line) {
+        return line.matches(VALUE_POS, "value");
+    }
+
+    static boolean hasMillisColumn(final ExportLineReader header) {
+        return header.matches(MILLIS_POS, "millis");
+    }
+
+    /**
+     * Creates the measurement of the current line. The date is taken from the milliseconds if the file has them, files of
+     * older versions only have the formatted date.
+     * 
+     * @param lastType
+     *            type of the previous line, most lines repeat it
+     */
+    static Measurement readMeasurement(final ExportLineReader line, final boolean millisColumn, final MeasureType lastType)
+            throws MeasurementException {
+        final MeasureType type;
+        if (lastType != null && line.matches(TYPE_POS, lastType.name())) {
+            type = lastType;
         } else {
-            result = null;
+            type = MeasureType.valueOf(line.getString(TYPE_POS));
         }
-        return result;
+        if (type == null) {
+            throw new MeasurementException(MeasurementException.ErrorId.PARSEERROR, "unknown type");
+        }
+        final long date;
+        try {
+            date = millisColumn && !line.isEmpty(MILLIS_POS) ? line.getLong(MILLIS_POS) : line.getTimestamp(TIMESTAMP_POS);
+        } catch (final NumberFormatException e) {
+            throw new MeasurementException(MeasurementException.ErrorId.PARSEERROR_DATE, DATE_STRING);
+        }
+        if (line.isEmpty(VALUE_POS)) {
+            throw new MeasurementException(MeasurementException.ErrorId.NOINPUT);
+        }
+        final Measurement measurement = new Measurement();
+        measurement.setField(type);
+        try {
+            measurement.setAndCheckValue(line.getFloat(VALUE_POS), line.getBoolean(METRIC_POS));
+            measurement.setId(line.isEmpty(ID_POS) ? -1l : line.getLong(ID_POS));
+        } catch (final NumberFormatException e) {
+            throw new MeasurementException(MeasurementException.ErrorId.PARSEERROR);
+        }
+        measurement.setTimestamp(new Date(date));
+        measurement.setComment(line.getString(COMMENT_POS));
+        return measurement;
     }
 
-    private File openExportFile(final boolean create) throws MeasurementException {
+    private File openExportFile(final String fileName, final boolean create) throws MeasurementException {
         final File sdPath = getSDPath();
-        final File exportFile = new File(sdPath, EXPORT_FILE_NAME);
+        final File exportFile = new File(sdPath, fileName);
         if (create) {
             try {
                 exportFile.createNewFile();
@@ -251,7 +581,19 @@ public class SqliteExport extends AsyncTask<Boolean, Void, Integer> {
         return exportFile;
     }
 
-    private File getSDPath() throws MeasurementException {
+    /**
+     * @return the newer one of the plain and the compressed export file
+     */
+    private File findImportFile() throws MeasurementException {
+        final File plain = openExportFile(EXPORT_FILE_NAME, false);
+        final File compressed = openExportFile(EXPORT_FILE_NAME + GZIP_SUFFIX, false);
+        if (compressed.exists() && (!plain.exists() || compressed.lastModified() > plain.lastModified())) {
+            return compressed;
+        }
+        return plain;
+    }
+
+    static File getSDPath() throws MeasurementException {
         final File sdDir = new File(Environment.getExternalStorageDirectory(), "");
         final File dwDir = new File(sdDir, EXPORT_DIR);
         if (!dwDir.exists()) {
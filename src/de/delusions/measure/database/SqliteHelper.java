@@ -15,22 +15,49 @@
  */
 package de.delusions.measure.database;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
 
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteQueryBuilder;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.util.Log;
 import de.delusions.measure.ment.MeasureType;
 import de.delusions.measure.ment.Measurement;
 import de.delusions.measure.ment.MeasurementException;
 import de.delusions.measure.ment.MeasurementException.ErrorId;
+import de.delusions.measure.ment.RunningStatistics;
 
 /**
  * Simple measure database access helper class. Defines the basic CRUD operations for the measure app.
+ * 
+ * All mutations run one after the other on a single writer thread. Reads run on the calling thread and, with write ahead
+ * logging, do not wait for a running write.
  */
 public class SqliteHelper {
 
@@ -48,10 +75,28 @@ public class SqliteHelper {
     public static final String KEY_ENABLED = "enabled";
     public static final String KEY_COLOR = "color";
     public static final String KEY_COMMENT = "comment";
+    /** columns of {@link #fetchChanges(long, long)} besides the measure */
+    public static final String KEY_JOURNAL_OP = "op";
+    public static final String KEY_JOURNAL_MEASURE = "measure_id";
+    public static final String JOURNAL_DELETE = "D";
+    /** position of the row's type in the list given to {@link #fetchValuesOnlyByDate(Date, List)} */
+    public static final String KEY_TYPE_INDEX = "type_index";
+    /** value of the measure of the same type just before the row, null for the first one, see {@link #fetchAll(MeasureType)} */
+    public static final String KEY_PREVIOUS = "previous";
+
+    private static SqliteHelper instance;
+
+    /** runs all mutations in submission order */
+    private static final ExecutorService WRITER = Executors.newSingleThreadExecutor();
+
+    /** bumped after every write to the measure table, lets readers tell whether cached results are still current */
+    private static final AtomicLong DATA_VERSION = new AtomicLong();
 
     private DatabaseHelper mDbHelper;
     private SQLiteDatabase mDb;
-    private boolean open = false;
+    private volatile boolean open = false;
+    private int references = 0;
+    private final Map<String, SQLiteStatement> statements = new HashMap<String, SQLiteStatement>();
 
     /**
      * Database creation sql statement
@@ -59,15 +104,185 @@ public class SqliteHelper {
     private static final String WEIGHT_CREATE = "create table weightTable (_id integer primary key autoincrement, " + "weight real not null, "
             + "measure_date datetime default current_timestamp,comment text, name text default 'WEIGHT');";
 
+    /**
+     * Every measure query filters on the type name and sorts by date, so both go into one index
+     */
+    private static final String WEIGHT_INDEX_CREATE = "create index if not exists weightNameDateIndex on weightTable (name, measure_date);";
+
+    /**
+     * One row of running statistics per type, updated in the same transaction as the measures they describe
+     */
+    private static final String STATS_CREATE = "create table statsTable (name text primary key, count integer not null, minValue real, maxValue real, "
+            + "firstDate integer, firstValue real, lastDate integer, lastValue real, mean real, m2 real);";
+
+    /**
+     * Count, sum, extremes and last entry per type and day, week or month, updated in the same transaction as the measures
+     */
+    private static final String ROLLUP_CREATE = "create table rollupTable (name text not null, bucket integer not null, start integer not null, "
+            + "count integer not null, sum real not null, minValue real, maxValue real, lastDate integer, lastValue real, primary key (name, bucket, start));";
+
+    /**
+     * Append only list of changed measures, filled by triggers so that every write path is covered. Exports read the
+     * entries after their watermark in {@link #MARK_TABLE}.
+     */
+    private static final String JOURNAL_CREATE = "create table journalTable (seq integer primary key autoincrement, op text not null, measure_id integer not null);";
+    private static final String JOURNAL_INDEX_CREATE = "create index if not exists journalMeasureIndex on journalTable (measure_id, seq);";
+    private static final String[] JOURNAL_TRIGGERS = {
+            "create trigger journalInsert after insert on weightTable begin insert into journalTable (op, measure_id) values ('I', new._id); end;",
+            "create trigger journalUpdate after update on weightTable begin insert into journalTable (op, measure_id) values ('U', new._id); end;",
+            "create trigger journalDelete after delete on weightTable begin insert into journalTable (op, measure_id) values ('D', old._id); end;" };
+    private static final String MARK_CREATE = "create table markTable (name text primary key, seq integer not null);";
+
     private static final String TRACKING_CREATE = "create table trackingTable(_id integer primary key autoincrement, enabled integer default 0,name text unique, unit text, maxValue real default 999, smallStep real default 1, bigStep real default 5, key integer, color integer);";
 
+    private static final String MEASURE_INSERT = "insert into weightTable (weight, name, comment, measure_date) values (?, ?, ?, ?)";
+    private static final String MEASURE_UPDATE = "update weightTable set weight=?, measure_date=?, comment=? where _id=?";
+    private static final String MEASURE_DELETE = "delete from weightTable where _id=?";
+    /**
+     * Every measure of one type, newest first, with the value of the entry before it. The lookup runs per row on the
+     * (name, measure_date) index while the cursor window is filled, which replaces moving the cursor to the next row and
+     * back. Entries with equal dates are ordered by id.
+     */
+    private static final String MEASURE_WITH_PREVIOUS = "select w.*, (select p.weight from weightTable p where p.name = w.name "
+            + "and p.measure_date <= w.measure_date and (p.measure_date < w.measure_date or p._id < w._id) "
+            + "order by p.measure_date desc, p._id desc limit 1) as previous from weightTable w where w.name = ?";
+    /** continues a page of {@link #MEASURE_WITH_PREVIOUS} after the row with the given date and id */
+    private static final String MEASURE_AFTER_KEY = " and w.measure_date <= ? and (w.measure_date < ? or w._id < ?)";
+    private static final String MEASURE_ORDER = " order by w.measure_date desc, w._id desc";
+    private static final String MEASURE_SELECT = "select name, weight, measure_date from weightTable where _id=?";
+    private static final String STATS_REPLACE = "insert or replace into statsTable (name, count, minValue, maxValue, firstDate, firstValue, lastDate, lastValue, mean, m2) "
+            + "values (?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+    private static final String ROLLUP_INSERT = "insert into rollupTable (name, bucket, start, count, sum, minValue, maxValue, lastDate, lastValue) "
+            + "values (?, ?, ?, ?, ?, ?, ?, ?, ?)";
+    private static final String ROLLUP_CREATE_BUCKET = "insert or ignore into rollupTable (name, bucket, start, count, sum, minValue, maxValue, lastDate, lastValue) "
+            + "values (?, ?, ?, 0, 0, ?, ?, ?, ?)";
+    /** all expressions see the old row, so the last value is only replaced by an entry that is not older */
+    private static final String ROLLUP_ADD = "update rollupTable set count=count+1, sum=sum+?1, minValue=min(minValue, ?1), maxValue=max(maxValue, ?1), "
+            + "lastValue=case when ?2>=lastDate then ?1 else lastValue end, lastDate=max(lastDate, ?2) where name=?3 and bucket=?4 and start=?5";
+    private static final String TYPE_INSERT = "insert into trackingTable (name, maxValue, smallStep, bigStep, unit, key, color) values (?, ?, ?, ?, ?, ?, ?)";
+    /**
+     * The last journal entry per measure between two sequence numbers with the current row, which is missing once the
+     * measure has been deleted.
+     */
+    private static final String JOURNAL_CHANGES = "select j.seq, j.op, j.measure_id, w.weight, w.name, w.measure_date, w.comment from journalTable j "
+            + "join (select measure_id, max(seq) as last from journalTable where seq > ? and seq <= ? group by measure_id) l on j.seq = l.last "
+            + "left join weightTable w on w._id = j.measure_id order by j.seq";
+    /** the pragma returns whether it was blocked, the frames in the log and the frames copied into the database */
+    private static final String WAL_CHECKPOINT = "PRAGMA wal_checkpoint";
+    private static final String EXPLAIN = "EXPLAIN QUERY PLAN ";
+    private static final String WEIGHT_INDEX = "weightNameDateIndex";
+    private static final String WAL_CHECKPOINT_FULL = "PRAGMA wal_checkpoint(FULL)";
+    private static final String INTEGRITY_CHECK = "PRAGMA integrity_check";
+    private static final String TABLE_INFO = "PRAGMA table_info(";
+    private static final int CHECKPOINT_ATTEMPTS = 10;
+    private static final String JOURNAL_END = "select coalesce(max(seq), 0) from journalTable";
+    private static final String MARK_SELECT = "select coalesce(max(seq), 0) from markTable where name = ?";
+    private static final String MARK_REPLACE = "insert or replace into markTable (name, seq) values (?, ?)";
+    /** entries that every reader has seen are no longer needed */
+    private static final String JOURNAL_DROP_READ = "delete from journalTable where seq <= (select coalesce(min(seq), 0) from markTable)";
+    /** of the remaining entries only the last one per measure is read, see {@link #JOURNAL_CHANGES} */
+    private static final String JOURNAL_FOLD = "delete from journalTable where seq < (select max(k.seq) from journalTable k where k.measure_id = journalTable.measure_id)";
+    /** number of rows touched by the last statement, executeUpdateDelete is not available before API 11 */
+    private static final String CHANGES = "select changes()";
+
+    /** number of rows written per transaction by {@link #createMeasures(Iterable)} */
+    public static final int DEFAULT_CHUNK_SIZE = 500;
+
     private static final String DATABASE_NAME = "data";
     private static final String WEIGHT_TABLE = "weightTable";
     private static final String TRACKING_TABLE = "trackingTable";
-    private static final int DATABASE_VERSION = 11;
+    private static final String STATS_TABLE = "statsTable";
+    private static final String ROLLUP_TABLE = "rollupTable";
+    private static final String MARK_TABLE = "markTable";
+    static final int DATABASE_VERSION = 15;
 
     private final Context mCtx;
 
+    /**
+     * Informed after each committed chunk of a bulk insert.
+     */
+    public interface ChunkListener {
+
+        void onChunkCommitted(int created);
+    }
+
+    /**
+     * Informed on the main thread once an asynchronous write has finished.
+     */
+    public interface WriteCallback<T> {
+
+        /**
+         * @param result
+         *            the result of the write
+         */
+        void onWriteDone(T result);
+
+        /**
+         * @param error
+         *            why the write failed, nothing was written
+         */
+        void onWriteFailed(MeasurementException error);
+    }
+
+    /**
+     * Time span the rollups are kept for. Buckets start at midnight in the default time zone, weeks on the first day of the
+     * week of the default locale.
+     */
+    public enum Bucket {
+        DAY(Calendar.DAY_OF_MONTH), WEEK(Calendar.WEEK_OF_YEAR), MONTH(Calendar.MONTH);
+
+        private final int field;
+
+        private Bucket(final int field) {
+            this.field = field;
+        }
+
+        /**
+         * @return start of the bucket containing the given time
+         */
+        public long floor(final long time) {
+            final Calendar cal = Calendar.getInstance();
+            cal.setTimeInMillis(time);
+            cal.set(Calendar.HOUR_OF_DAY, 0);
+            cal.set(Calendar.MINUTE, 0);
+            cal.set(Calendar.SECOND, 0);
+            cal.set(Calendar.MILLISECOND, 0);
+            if (this == WEEK) {
+                while (cal.get(Calendar.DAY_OF_WEEK) != cal.getFirstDayOfWeek()) {
+                    cal.add(Calendar.DAY_OF_MONTH, -1);
+                }
+            } else if (this == MONTH) {
+                cal.set(Calendar.DAY_OF_MONTH, 1);
+            }
+            return cal.getTimeInMillis();
+        }
+
+        /**
+         * @return start of the bucket following the one that starts at the given time
+         */
+        public long next(final long start) {
+            final Calendar cal = Calendar.getInstance();
+            cal.setTimeInMillis(start);
+            cal.add(this.field, 1);
+            return cal.getTimeInMillis();
+        }
+    }
+
+    /**
+     * What {@link SqliteHelper#aggregate(List, Date, Date, Bucket, Aggregate)} computes per bucket.
+     */
+    public enum Aggregate {
+        AVG("sum / count"), MIN("minValue"), MAX("maxValue"), LAST("lastValue"), COUNT("count");
+
+        private final String expression;
+
+        private Aggregate(final String expression) {
+            this.expression = expression;
+        }
+    }
+
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
     private static class DatabaseHelper extends SQLiteOpenHelper {
 
         DatabaseHelper(final Context context) {
@@ -77,7 +292,19 @@ public class SqliteHelper {
         @Override
         public void onCreate(final SQLiteDatabase db) {
             db.execSQL(WEIGHT_CREATE);
+            db.execSQL(WEIGHT_INDEX_CREATE);
             db.execSQL(TRACKING_CREATE);
+            db.execSQL(STATS_CREATE);
+            db.execSQL(ROLLUP_CREATE);
+            createJournal(db);
+        }
+
+        @Override
+        public void onOpen(final SQLiteDatabase db) {
+            super.onOpen(db);
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB && !db.isReadOnly()) {
+                db.enableWriteAheadLogging();
+            }
         }
 
         @Override
@@ -97,15 +324,69 @@ public class SqliteHelper {
             if (oldVersion < 11) {
                 db.execSQL("alter table weightTable add column comment text");
             }
+            if (oldVersion < 12) {
+                db.execSQL(WEIGHT_INDEX_CREATE);
+                db.execSQL("ANALYZE");
+            }
+            if (oldVersion < 13) {
+                db.execSQL(STATS_CREATE);
+                initStatistics(db);
+            }
+            if (oldVersion < 14) {
+                db.execSQL(ROLLUP_CREATE);
+                initRollups(db);
+            }
+            if (oldVersion < 15) {
+                createJournal(db);
+                db.execSQL("insert into journalTable (op, measure_id) select 'I', _id from weightTable order by measure_date");
+            }
         }
 
     }
 
     public static void initTypes(final SQLiteDatabase db) {
-        SqliteHelper.createType(db, MeasureType.WEIGHT);
-        SqliteHelper.createType(db, MeasureType.HEIGHT);
-        SqliteHelper.createType(db, MeasureType.BODYFAT);
-        SqliteHelper.createType(db, MeasureType.WAIST);
+        final SQLiteStatement insert = db.compileStatement(TYPE_INSERT);
+        try {
+            SqliteHelper.createType(insert, MeasureType.WEIGHT);
+            SqliteHelper.createType(insert, MeasureType.HEIGHT);
+            SqliteHelper.createType(insert, MeasureType.BODYFAT);
+            SqliteHelper.createType(insert, MeasureType.WAIST);
+        } finally {
+            insert.close();
+        }
+    }
+
+    private static void createJournal(final SQLiteDatabase db) {
+        db.execSQL(JOURNAL_CREATE);
+        db.execSQL(JOURNAL_INDEX_CREATE);
+        for (final String trigger : JOURNAL_TRIGGERS) {
+            db.execSQL(trigger);
+        }
+        db.execSQL(MARK_CREATE);
+    }
+
+    private static void initStatistics(final SQLiteDatabase db) {
+        final SQLiteStatement replace = db.compileStatement(STATS_REPLACE);
+        try {
+            for (final MeasureType type : MeasureType.getTypes()) {
+                saveStatistics(replace, rebuildStatistics(db, type));
+            }
+        } finally {
+            replace.close();
+        }
+    }
+
+    private static void initRollups(final SQLiteDatabase db) {
+        final SQLiteStatement insert = db.compileStatement(ROLLUP_INSERT);
+        try {
+            for (final MeasureType type : MeasureType.getTypes()) {
+                for (final Bucket bucket : Bucket.values()) {
+                    rebuildRollups(db, insert, type, bucket, Long.MIN_VALUE, Long.MAX_VALUE);
+                }
+            }
+        } finally {
+            insert.close();
+        }
     }
 
     /**
@@ -114,14 +395,36 @@ public class SqliteHelper {
      * @param ctx
      *            the Context within which to work
      */
-    public SqliteHelper(final Context ctx) {
+    private SqliteHelper(final Context ctx) {
         this.mCtx = ctx;
         open();
     }
 
+    /**
+     * Returns the process wide database helper and takes a reference on it. Every call has to be paired with a call to
+     * {@link #close()}, the database is only closed when the last reference is given back.
+     * 
+     * @param ctx
+     *            any Context, only the application context is retained
+     * @return the shared helper
+     * @throws MeasurementException
+     *             if the database could be neither opened or created
+     */
+    public static SqliteHelper getInstance(final Context ctx) {
+        synchronized (SqliteHelper.class) {
+            if (instance == null || !instance.open) {
+                instance = new SqliteHelper(ctx.getApplicationContext());
+            }
+            instance.references++;
+            Log.d(TAG, "getInstance references=" + instance.references);
+            return instance;
+        }
+    }
+
     /**
      * Open the notes database. If it cannot be opened, try to create a new instance of the database. If it cannot be
-     * created, throw an exception to signal the failure
+     * created, throw an exception to signal the failure. SQLiteDatabase serializes access from several threads itself, so
+     * a lock held by another thread is not a reason to give up the handle.
      * 
      * @return this (self reference, allowing this to be chained in an initialization call)
      * @throws SQLException
@@ -129,34 +432,94 @@ public class SqliteHelper {
      */
     private SqliteHelper open() throws SQLException {
         Log.d(TAG, "open database");
+        applyStagedRestore();
         try {
-            if (this.mDbHelper == null) {
-                this.mDbHelper = new DatabaseHelper(this.mCtx);
-            }
+            this.mDbHelper = new DatabaseHelper(this.mCtx);
             this.mDb = this.mDbHelper.getWritableDatabase();
-            if (this.mDb.isReadOnly() || this.mDb.isDbLockedByOtherThreads() || this.mDb.isDbLockedByCurrentThread()) {
-                this.mDb.close();
-                Log.w(TAG, "could not open database: locked or readonly");
-            } else {
-                this.open = true;
-            }
         } catch (final Exception e) {
             Log.e(TAG, "failed to open database", e);
             throw new MeasurementException(ErrorId.DATABASE_ERROR, e.getLocalizedMessage());
         }
+        if (this.mDb.isReadOnly()) {
+            this.mDbHelper.close();
+            Log.w(TAG, "could not open database: readonly");
+            throw new MeasurementException(ErrorId.DATABASE_ERROR, "readonly");
+        }
+        this.open = true;
+        if (Log.isLoggable(TAG, Log.DEBUG)) {
+            checkQueryPlans();
+        }
         return this;
     }
 
-    public void close() {
-        Log.d(TAG, "close");
+    /**
+     * Logs a warning for each query on the measures of one type that does not read along the name and date index or
+     * sorts its result in a temporary tree. Only runs with debug logging, e.g. after "adb shell setprop log.tag.SqliteHelper
+     * DEBUG".
+     */
+    private void checkQueryPlans() {
+        final String[] name = { MeasureType.WEIGHT.name() };
+        final String[] nameAndKey = { MeasureType.WEIGHT.name(), "0", "0", "0" };
+        final String[] dateAndName = { "0", MeasureType.WEIGHT.name() };
+        checkQueryPlan("fetchAll", MEASURE_WITH_PREVIOUS + MEASURE_ORDER, name);
+        checkQueryPlan("fetchPage", MEASURE_WITH_PREVIOUS + MEASURE_AFTER_KEY + MEASURE_ORDER + " limit 1", nameAndKey);
+        checkQueryPlan("fetchLast", SQLiteQueryBuilder.buildQueryString(false, WEIGHT_TABLE, null, "name=?", null, null, "measure_date DESC", "1"),
+                name);
+        checkQueryPlan("fetchFirst", SQLiteQueryBuilder.buildQueryString(false, WEIGHT_TABLE, null, "name=?", null, null, "measure_date ASC", "1"),
+                name);
+        checkQueryPlan("fetchValuesOnlyByDate",
+                SQLiteQueryBuilder.buildQueryString(false, WEIGHT_TABLE, null, "measure_date > ? and name=?", null, null, "measure_date ASC", null),
+                dateAndName);
+        checkQueryPlan("fetchAllByType",
+                SQLiteQueryBuilder.buildQueryString(false, WEIGHT_TABLE, null, null, null, null, KEY_NAME + ", " + KEY_DATE, null), null);
+    }
+
+    private void checkQueryPlan(final String query, final String sql, final String[] selectionArgs) {
+        final Cursor cursor = this.mDb.rawQuery(EXPLAIN + sql, selectionArgs);
         try {
-            if (this.open) {
-                this.mDb.close();
+            final int detailColumn = cursor.getColumnIndexOrThrow("detail");
+            while (cursor.moveToNext()) {
+                final String detail = cursor.getString(detailColumn);
+                final boolean readsTable = detail.startsWith("SCAN") || detail.startsWith("SEARCH");
+                if (detail.contains("TEMP B-TREE") || readsTable && !detail.contains(WEIGHT_INDEX)) {
+                    Log.w(TAG, query + " does not use " + WEIGHT_INDEX + ": " + detail);
+                } else {
+                    Log.d(TAG, query + ": " + detail);
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Gives back one reference taken with {@link #getInstance(Context)}. The last one closes the database.
+     */
+    public void close() {
+        synchronized (SqliteHelper.class) {
+            if (this.references > 1) {
+                this.references--;
+                Log.d(TAG, "close references=" + this.references);
+                return;
+            }
+            Log.d(TAG, "close");
+            this.references = 0;
+            try {
+                for (final SQLiteStatement statement : this.statements.values()) {
+                    statement.close();
+                }
+                this.statements.clear();
+                if (this.open) {
+                    this.mDb.close();
+                }
+                this.mDbHelper.close();
+                this.open = false;
+            } catch (final Exception e) {
+                Log.e(TAG, "close failed", e);
+            }
+            if (instance == this) {
+                instance = null;
             }
-            this.mDbHelper.close();
-            this.open = false;
-        } catch (final Exception e) {
-            Log.e(TAG, "close failed", e);
         }
     }
 
@@ -164,6 +527,13 @@ public class SqliteHelper {
         return this.open;
     }
 
+    /**
+     * @return a number that changes whenever measures are created, updated or deleted
+     */
+    public static long getDataVersion() {
+        return DATA_VERSION.get();
+    }
+
     /**
      * Create a new note using the title and body provided. If the note is successfully created return the new rowId for
      * that note, otherwise return a -1 to indicate failure.
@@ -176,31 +546,254 @@ public class SqliteHelper {
      * @return rowId or -1 if failed
      */
     public long createMeasure(final Measurement measurement) {
+        return awaitWrite(true, new Callable<Long>() {
+
+            public Long call() {
+                return insertMeasure(measurement);
+            }
+        });
+    }
+
+    public void createMeasure(final Measurement measurement, final WriteCallback<Long> callback) {
+        submitWrite(true, new Callable<Long>() {
+
+            public Long call() {
+                return insertMeasure(measurement);
+            }
+        }, callback);
+    }
+
+    private long insertMeasure(final Measurement measurement) {
+        final Map<MeasureType, RunningStatistics> touched = new HashMap<MeasureType, RunningStatistics>();
+        beginTransaction();
+        try {
+            final long rowId = insertRow(measurement, touched);
+            storeStatistics(touched);
+            this.mDb.setTransactionSuccessful();
+            return rowId;
+        } finally {
+            this.mDb.endTransaction();
+        }
+    }
+
+    private long insertRow(final Measurement measurement, final Map<MeasureType, RunningStatistics> touched) {
         Log.d(TAG, "createMeasure " + measurement);
-        final ContentValues initialValues = new ContentValues();
-        initialValues.put(KEY_MEASURE_VALUE, measurement.getValue());
-        initialValues.put(KEY_NAME, measurement.getField().name());
-        initialValues.put(KEY_COMMENT, measurement.getComment());
-        initialValues.put(KEY_DATE, measurement.getTimestamp() != null ? measurement.getTimestamp().getTime() : System.currentTimeMillis());
-        return this.mDb.insert(WEIGHT_TABLE, null, initialValues);
+        final long date = measurement.getTimestamp() != null ? measurement.getTimestamp().getTime() : System.currentTimeMillis();
+        final long rowId;
+        final SQLiteStatement insert = compiled(MEASURE_INSERT);
+        synchronized (insert) {
+            insert.clearBindings();
+            insert.bindDouble(1, measurement.getValue());
+            insert.bindString(2, measurement.getField().name());
+            bindStringOrNull(insert, 3, measurement.getComment());
+            insert.bindLong(4, date);
+            rowId = insert.executeInsert();
+        }
+        if (rowId >= 0) {
+            runningStatistics(measurement.getField(), touched).add(date, measurement.getValue());
+            addToRollups(measurement.getField(), date, measurement.getValue());
+        }
+        return rowId;
+    }
+
+    /**
+     * Creates all measurements, {@link #DEFAULT_CHUNK_SIZE} rows per transaction.
+     * 
+     * @return number of measurements created
+     */
+    public int createMeasures(final Iterable<Measurement> measurements) {
+        return createMeasures(measurements, DEFAULT_CHUNK_SIZE, null);
     }
 
-    static long createType(final SQLiteDatabase db, final MeasureType type) {
+    /**
+     * Creates all measurements, committing one transaction per chunk instead of one per row.
+     * 
+     * @param measurements
+     *            the measurements to insert
+     * @param chunkSize
+     *            rows per transaction
+     * @param listener
+     *            informed with the running total after every chunk, may be null
+     * @return number of measurements created
+     */
+    public int createMeasures(final Iterable<Measurement> measurements, final int chunkSize, final ChunkListener listener) {
+        return awaitWrite(true, new Callable<Integer>() {
+
+            public Integer call() {
+                return insertMeasures(measurements, chunkSize, listener);
+            }
+        });
+    }
+
+    public void createMeasures(final Iterable<Measurement> measurements, final WriteCallback<Integer> callback) {
+        submitWrite(true, new Callable<Integer>() {
+
+            public Integer call() {
+                return insertMeasures(measurements, DEFAULT_CHUNK_SIZE, null);
+            }
+        }, callback);
+    }
+
+    private int insertMeasures(final Iterable<Measurement> measurements, final int chunkSize, final ChunkListener listener) {
+        Log.d(TAG, "createMeasures chunkSize=" + chunkSize);
+        final Map<MeasureType, RunningStatistics> touched = new HashMap<MeasureType, RunningStatistics>();
+        int created = 0;
+        int inChunk = 0;
+        beginTransaction();
+        try {
+            for (final Measurement measurement : measurements) {
+                if (insertRow(measurement, touched) >= 0) {
+                    created++;
+                }
+                if (++inChunk == chunkSize) {
+                    storeStatistics(touched);
+                    this.mDb.setTransactionSuccessful();
+                    this.mDb.endTransaction();
+                    inChunk = 0;
+                    if (listener != null) {
+                        listener.onChunkCommitted(created);
+                    }
+                    beginTransaction();
+                }
+            }
+            storeStatistics(touched);
+            this.mDb.setTransactionSuccessful();
+        } finally {
+            this.mDb.endTransaction();
+        }
+        if (listener != null && inChunk > 0) {
+            listener.onChunkCommitted(created);
+        }
+        return created;
+    }
+
+    static long createType(final SQLiteStatement insert, final MeasureType type) {
         Log.d(TAG, "createType " + type);
-        final ContentValues initialValues = new ContentValues();
-        initialValues.put(KEY_NAME, type.name());
-        initialValues.put(KEY_MAXVALUE, type.getMaxValue());
-        initialValues.put(KEY_SMALLSTEP, type.getSmallStep());
-        initialValues.put(KEY_BIGSTEP, type.getBigStep());
-        initialValues.put(KEY_UNIT, type.getUnit().name());
-        // initialValues.put(KEY_ENABLED, type.isEnabled());
-        initialValues.put(KEY_LICENSE, type.getLicenseKey());
-        initialValues.put(KEY_COLOR, type.getColor());
-        return db.insert(TRACKING_TABLE, null, initialValues);
+        synchronized (insert) {
+            insert.clearBindings();
+            insert.bindString(1, type.name());
+            insert.bindDouble(2, type.getMaxValue());
+            insert.bindDouble(3, type.getSmallStep());
+            insert.bindDouble(4, type.getBigStep());
+            insert.bindString(5, type.getUnit().name());
+            insert.bindLong(6, type.getLicenseKey());
+            insert.bindLong(7, type.getColor());
+            return insert.executeInsert();
+        }
     }
 
     public long createType(final MeasureType type) {
-        return createType(this.mDb, type);
+        return createType(compiled(TYPE_INSERT), type);
+    }
+
+    /**
+     * Queues a write on the writer thread. The write holds its own reference on this helper so callers may close theirs
+     * right away.
+     * 
+     * @param changesMeasures
+     *            whether the write changes the measures, only then the cached data of the screens is outdated afterwards
+     */
+    private <T> Future<T> submitWrite(final boolean changesMeasures, final Callable<T> write, final WriteCallback<T> callback) {
+        synchronized (SqliteHelper.class) {
+            this.references++;
+        }
+        return WRITER.submit(new Callable<T>() {
+
+            public T call() throws Exception {
+                T result = null;
+                MeasurementException failure = null;
+                try {
+                    result = write.call();
+                    if (changesMeasures) {
+                        DATA_VERSION.incrementAndGet();
+                    }
+                    return result;
+                } catch (final RuntimeException e) {
+                    Log.e(TAG, "write failed", e);
+                    failure = e instanceof MeasurementException ? (MeasurementException) e : new MeasurementException(ErrorId.DATABASE_ERROR,
+                            e.getLocalizedMessage());
+                    throw e;
+                } finally {
+                    close();
+                    if (callback != null) {
+                        final T done = result;
+                        final MeasurementException error = failure;
+                        SqliteHelper.this.mainHandler.post(new Runnable() {
+
+                            public void run() {
+                                if (error != null) {
+                                    callback.onWriteFailed(error);
+                                } else {
+                                    callback.onWriteDone(done);
+                                }
+                            }
+                        });
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Queues a write and waits for it, for callers that are not on the main thread or need the result right away.
+     */
+    private <T> T awaitWrite(final boolean changesMeasures, final Callable<T> write) {
+        try {
+            return submitWrite(changesMeasures, write, null).get();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new MeasurementException(ErrorId.DATABASE_ERROR, e.getLocalizedMessage());
+        } catch (final ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new MeasurementException(ErrorId.DATABASE_ERROR, e.getCause().getLocalizedMessage());
+        }
+    }
+
+    /**
+     * Starts a transaction that does not block readers while write ahead logging is enabled.
+     */
+    private void beginTransaction() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+            this.mDb.beginTransactionNonExclusive();
+        } else {
+            this.mDb.beginTransaction();
+        }
+    }
+
+    /**
+     * Returns the compiled statement for the given sql, compiling it on first use. Statements are not thread safe, callers
+     * synchronize on the returned statement while binding and executing it.
+     */
+    private SQLiteStatement compiled(final String sql) {
+        synchronized (this.statements) {
+            SQLiteStatement statement = this.statements.get(sql);
+            if (statement == null) {
+                statement = this.mDb.compileStatement(sql);
+                this.statements.put(sql, statement);
+            }
+            return statement;
+        }
+    }
+
+    /**
+     * Executes an update or delete statement and returns the number of rows it changed.
+     */
+    private long executeUpdateDelete(final SQLiteStatement statement) {
+        final SQLiteStatement changes = compiled(CHANGES);
+        synchronized (changes) {
+            statement.execute();
+            return changes.simpleQueryForLong();
+        }
+    }
+
+    private static void bindStringOrNull(final SQLiteStatement statement, final int index, final String value) {
+        if (value == null) {
+            statement.bindNull(index);
+        } else {
+            statement.bindString(index, value);
+        }
     }
 
     public boolean exists(final Measurement measurement) {
@@ -208,6 +801,9 @@ public class SqliteHelper {
         if (measurement.getId() != null) {
             final Cursor cursor = fetchById(measurement.getId());
             result = cursor != null && cursor.getCount() > 0;
+            if (cursor != null) {
+                cursor.close();
+            }
         } else {
             result = false;
         }
@@ -219,12 +815,49 @@ public class SqliteHelper {
         if (type.name() != null) {
             final Cursor cursor = fetchByName(type.name());
             result = cursor != null && cursor.getCount() > 0;
+            if (cursor != null) {
+                cursor.close();
+            }
         } else {
             result = false;
         }
         return result;
     }
 
+    /**
+     * Reads type, date and value of all measures in one scan, for telling imported measures apart from existing ones.
+     */
+    Set<MeasureKey> fetchMeasureKeys() {
+        final String[] columns = { KEY_NAME, KEY_DATE, KEY_MEASURE_VALUE };
+        final Cursor cursor = this.mDb.query(WEIGHT_TABLE, columns, null, null, null, null, null);
+        try {
+            final Set<MeasureKey> keys = new HashSet<MeasureKey>(Math.max(16, cursor.getCount() * 2));
+            while (cursor.moveToNext()) {
+                keys.add(new MeasureKey(cursor.getString(0), cursor.getLong(1), cursor.getFloat(2)));
+            }
+            return keys;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * @return the ids of all measures
+     */
+    Set<Long> fetchMeasureIds() {
+        final String[] columns = { KEY_ROWID };
+        final Cursor cursor = this.mDb.query(WEIGHT_TABLE, columns, null, null, null, null, null);
+        try {
+            final Set<Long> ids = new HashSet<Long>(Math.max(16, cursor.getCount() * 2));
+            while (cursor.moveToNext()) {
+                ids.add(cursor.getLong(0));
+            }
+            return ids;
+        } finally {
+            cursor.close();
+        }
+    }
+
     /**
      * Update the measure using the details provided. The measure to be updated is specified using the rowId, and it is
      * altered to use the title and body values passed in
@@ -238,12 +871,52 @@ public class SqliteHelper {
      * @return true if the note was successfully updated, false otherwise
      */
     public boolean updateMeasure(final long rowId, final Measurement measurement) {
+        return awaitWrite(true, new Callable<Boolean>() {
+
+            public Boolean call() {
+                return changeMeasure(rowId, measurement);
+            }
+        });
+    }
+
+    public void updateMeasure(final long rowId, final Measurement measurement, final WriteCallback<Boolean> callback) {
+        submitWrite(true, new Callable<Boolean>() {
+
+            public Boolean call() {
+                return changeMeasure(rowId, measurement);
+            }
+        }, callback);
+    }
+
+    private boolean changeMeasure(final long rowId, final Measurement measurement) {
         Log.d(TAG, "SqliteHelper: updateMeasure " + rowId);
-        final ContentValues args = new ContentValues();
-        args.put(KEY_MEASURE_VALUE, measurement.getValue());
-        args.put(KEY_DATE, measurement.getTimestamp().getTime());
-        args.put(KEY_COMMENT, measurement.getComment());
-        return this.mDb.update(WEIGHT_TABLE, args, KEY_ROWID + "=" + rowId, null) > 0;
+        final Map<MeasureType, RunningStatistics> touched = new HashMap<MeasureType, RunningStatistics>();
+        beginTransaction();
+        try {
+            final boolean updated;
+            final Measurement old = fetchRow(rowId);
+            final SQLiteStatement update = compiled(MEASURE_UPDATE);
+            synchronized (update) {
+                update.clearBindings();
+                update.bindDouble(1, measurement.getValue());
+                update.bindLong(2, measurement.getTimestamp().getTime());
+                bindStringOrNull(update, 3, measurement.getComment());
+                update.bindLong(4, rowId);
+                updated = executeUpdateDelete(update) > 0;
+            }
+            if (updated && old != null) {
+                final RunningStatistics stats = runningStatistics(old.getField(), touched);
+                stats.remove(old.getTimestamp().getTime(), old.getValue());
+                stats.add(measurement.getTimestamp().getTime(), measurement.getValue());
+                storeStatistics(touched);
+                rebuildRollups(old.getField(), old.getTimestamp().getTime());
+                rebuildRollups(old.getField(), measurement.getTimestamp().getTime());
+            }
+            this.mDb.setTransactionSuccessful();
+            return updated;
+        } finally {
+            this.mDb.endTransaction();
+        }
     }
 
     public boolean updateType(final long rowId, final MeasureType type) {
@@ -266,15 +939,546 @@ public class SqliteHelper {
      * @return true if deleted, false otherwise
      */
     public boolean deleteNote(final long rowId) {
-        return this.mDb.delete(WEIGHT_TABLE, KEY_ROWID + "=" + rowId, null) > 0;
+        return awaitWrite(true, new Callable<Boolean>() {
+
+            public Boolean call() {
+                return removeMeasure(rowId);
+            }
+        });
+    }
+
+    public void deleteNote(final long rowId, final WriteCallback<Boolean> callback) {
+        submitWrite(true, new Callable<Boolean>() {
+
+            public Boolean call() {
+                return removeMeasure(rowId);
+            }
+        }, callback);
+    }
+
+    private boolean removeMeasure(final long rowId) {
+        final Map<MeasureType, RunningStatistics> touched = new HashMap<MeasureType, RunningStatistics>();
+        beginTransaction();
+        try {
+            final boolean deleted;
+            final Measurement old = fetchRow(rowId);
+            final SQLiteStatement delete = compiled(MEASURE_DELETE);
+            synchronized (delete) {
+                delete.clearBindings();
+                delete.bindLong(1, rowId);
+                deleted = executeUpdateDelete(delete) > 0;
+            }
+            if (deleted && old != null) {
+                runningStatistics(old.getField(), touched).remove(old.getTimestamp().getTime(), old.getValue());
+                storeStatistics(touched);
+                rebuildRollups(old.getField(), old.getTimestamp().getTime());
+            }
+            this.mDb.setTransactionSuccessful();
+            return deleted;
+        } finally {
+            this.mDb.endTransaction();
+        }
+    }
+
+    /**
+     * @return type, value and date of the given row or null if there is no such row or its type is unknown
+     */
+    private Measurement fetchRow(final long rowId) {
+        final Cursor cursor = this.mDb.rawQuery(MEASURE_SELECT, new String[] { Long.toString(rowId) });
+        try {
+            if (!cursor.moveToFirst() || MeasureType.valueOf(cursor.getString(0)) == null) {
+                return null;
+            }
+            final Measurement measurement = new Measurement();
+            measurement.setField(MeasureType.valueOf(cursor.getString(0)));
+            measurement.setValue(cursor.getFloat(1), true);
+            measurement.setTimestamp(new Date(cursor.getLong(2)));
+            return measurement;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private int removeAll() {
+        beginTransaction();
+        try {
+            final int deleted = this.mDb.delete(WEIGHT_TABLE, null, null);
+            this.mDb.delete(STATS_TABLE, null, null);
+            this.mDb.delete(ROLLUP_TABLE, null, null);
+            this.mDb.setTransactionSuccessful();
+            return deleted;
+        } finally {
+            this.mDb.endTransaction();
+        }
+    }
+
+    /**
+     * Returns the statistics of the given type as changed so far in the running write, loading them on first use.
+     */
+    private RunningStatistics runningStatistics(final MeasureType type, final Map<MeasureType, RunningStatistics> touched) {
+        RunningStatistics stats = touched.get(type);
+        if (stats == null) {
+            stats = fetchStatistics(type);
+            touched.put(type, stats);
+        }
+        return stats;
+    }
+
+    /**
+     * Writes back the statistics changed by the running write. Those that lost an extreme or their first or last entry are
+     * rebuilt from the measure table, which already holds the changes of this transaction.
+     */
+    private void storeStatistics(final Map<MeasureType, RunningStatistics> touched) {
+        final SQLiteStatement replace = compiled(STATS_REPLACE);
+        for (final Map.Entry<MeasureType, RunningStatistics> entry : touched.entrySet()) {
+            if (entry.getValue().isStale()) {
+                Log.d(TAG, "rebuilding statistics of " + entry.getKey());
+                entry.setValue(rebuildStatistics(this.mDb, entry.getKey()));
+            }
+            saveStatistics(replace, entry.getValue());
+        }
+    }
+
+    private static RunningStatistics rebuildStatistics(final SQLiteDatabase db, final MeasureType type) {
+        final RunningStatistics stats = new RunningStatistics(type);
+        final String[] columns = { KEY_DATE, KEY_MEASURE_VALUE };
+        final Cursor cursor = db.query(WEIGHT_TABLE, columns, "name=?", new String[] { type.name() }, null, null, "measure_date ASC");
+        try {
+            while (cursor.moveToNext()) {
+                stats.add(cursor.getLong(0), cursor.getFloat(1));
+            }
+        } finally {
+            cursor.close();
+        }
+        return stats;
+    }
+
+    private static void saveStatistics(final SQLiteStatement replace, final RunningStatistics stats) {
+        synchronized (replace) {
+            replace.clearBindings();
+            replace.bindString(1, stats.getType().name());
+            replace.bindLong(2, stats.getCount());
+            replace.bindDouble(3, stats.getMin());
+            replace.bindDouble(4, stats.getMax());
+            replace.bindLong(5, stats.getFirstDate());
+            replace.bindDouble(6, stats.getFirstValue());
+            replace.bindLong(7, stats.getLastDate());
+            replace.bindDouble(8, stats.getLastValue());
+            replace.bindDouble(9, stats.getMean());
+            replace.bindDouble(10, stats.getM2());
+            replace.execute();
+        }
+    }
+
+    /**
+     * Adds one entry to the day, week and month it falls into, creating the buckets when needed.
+     */
+    private void addToRollups(final MeasureType type, final long date, final float value) {
+        final SQLiteStatement create = compiled(ROLLUP_CREATE_BUCKET);
+        final SQLiteStatement add = compiled(ROLLUP_ADD);
+        synchronized (create) {
+            synchronized (add) {
+                for (final Bucket bucket : Bucket.values()) {
+                    final long start = bucket.floor(date);
+                    create.clearBindings();
+                    create.bindString(1, type.name());
+                    create.bindLong(2, bucket.ordinal());
+                    create.bindLong(3, start);
+                    create.bindDouble(4, value);
+                    create.bindDouble(5, value);
+                    create.bindLong(6, date);
+                    create.bindDouble(7, value);
+                    create.execute();
+                    add.clearBindings();
+                    add.bindDouble(1, value);
+                    add.bindLong(2, date);
+                    add.bindString(3, type.name());
+                    add.bindLong(4, bucket.ordinal());
+                    add.bindLong(5, start);
+                    add.execute();
+                }
+            }
+        }
+    }
+
+    /**
+     * Recomputes the day, week and month containing the given date from the measure table. Removing an entry can take away
+     * an extreme or the last value, which cannot be undone incrementally.
+     */
+    private void rebuildRollups(final MeasureType type, final long date) {
+        final SQLiteStatement insert = compiled(ROLLUP_INSERT);
+        for (final Bucket bucket : Bucket.values()) {
+            final long start = bucket.floor(date);
+            rebuildRollups(this.mDb, insert, type, bucket, start, bucket.next(start));
+        }
+    }
+
+    private static void rebuildRollups(final SQLiteDatabase db, final SQLiteStatement insert, final MeasureType type, final Bucket bucket,
+            final long from, final long to) {
+        final String[] range = { type.name(), Long.toString(from), Long.toString(to) };
+        db.delete(ROLLUP_TABLE, "name=? and bucket=" + bucket.ordinal() + " and start>=? and start<?", range);
+        final String[] columns = { KEY_DATE, KEY_MEASURE_VALUE };
+        final Cursor cursor = db.query(WEIGHT_TABLE, columns, "name=? and measure_date>=? and measure_date<?", range, null, null, "measure_date ASC");
+        try {
+            long start = 0;
+            int count = 0;
+            double sum = 0;
+            float min = 0;
+            float max = 0;
+            long lastDate = 0;
+            float lastValue = 0;
+            while (cursor.moveToNext()) {
+                final long date = cursor.getLong(0);
+                final float value = cursor.getFloat(1);
+                if (count > 0 && date >= bucket.next(start)) {
+                    insertRollup(insert, type, bucket, start, count, sum, min, max, lastDate, lastValue);
+                    count = 0;
+                }
+                if (count == 0) {
+                    start = bucket.floor(date);
+                    sum = 0;
+                    min = value;
+                    max = value;
+                }
+                count++;
+                sum += value;
+                min = Math.min(min, value);
+                max = Math.max(max, value);
+                lastDate = date;
+                lastValue = value;
+            }
+            if (count > 0) {
+                insertRollup(insert, type, bucket, start, count, sum, min, max, lastDate, lastValue);
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static void insertRollup(final SQLiteStatement insert, final MeasureType type, final Bucket bucket, final long start, final int count,
+            final double sum, final float min, final float max, final long lastDate, final float lastValue) {
+        synchronized (insert) {
+            insert.clearBindings();
+            insert.bindString(1, type.name());
+            insert.bindLong(2, bucket.ordinal());
+            insert.bindLong(3, start);
+            insert.bindLong(4, count);
+            insert.bindDouble(5, sum);
+            insert.bindDouble(6, min);
+            insert.bindDouble(7, max);
+            insert.bindLong(8, lastDate);
+            insert.bindDouble(9, lastValue);
+            insert.execute();
+        }
+    }
+
+    /**
+     * Aggregates one type per bucket, see {@link #aggregate(List, Date, Date, Bucket, Aggregate)}.
+     */
+    public Cursor aggregate(final MeasureType type, final Date from, final Date to, final Bucket bucket, final Aggregate fn) {
+        return aggregate(Collections.singletonList(type), from, to, bucket, fn);
+    }
+
+    /**
+     * Reads the rollups of all buckets starting in the given range. The cursor looks like the one of
+     * {@link #fetchValuesOnlyByDate(Date, List)}: the start of the bucket is in {@link #KEY_DATE}, the aggregated metric
+     * value or the count in {@link #KEY_MEASURE_VALUE}, ordered by type and date.
+     * 
+     * @param from
+     *            inclusive
+     * @param to
+     *            exclusive
+     */
+    public Cursor aggregate(final List<MeasureType> types, final Date from, final Date to, final Bucket bucket, final Aggregate fn) {
+        final StringBuilder typeIndex = new StringBuilder("case name");
+        final StringBuilder in = new StringBuilder();
+        final String[] selectionArgs = new String[2 * types.size() + 2];
+        for (int i = 0; i < types.size(); i++) {
+            typeIndex.append(" when ? then ").append(i);
+            in.append(i > 0 ? ", ?" : "?");
+            selectionArgs[i] = types.get(i).name();
+            selectionArgs[types.size() + 2 + i] = types.get(i).name();
+        }
+        typeIndex.append(" end");
+        selectionArgs[types.size()] = Long.toString(from.getTime());
+        selectionArgs[types.size() + 1] = Long.toString(to.getTime());
+        final String sql = "select start as " + KEY_DATE + ", " + fn.expression + " as " + KEY_MEASURE_VALUE + ", " + typeIndex + " as " + KEY_TYPE_INDEX
+                + " from " + ROLLUP_TABLE + " where bucket=" + bucket.ordinal() + " and start>=? and start<? and name in (" + in
+                + ") order by name, start ASC";
+        return this.mDb.rawQuery(sql, selectionArgs);
+    }
+
+    /**
+     * Returns count, extremes, first and last entry, mean and variance of the given type without touching the measures
+     * themselves.
+     */
+    public RunningStatistics fetchStatistics(final MeasureType type) {
+        final Cursor cursor = this.mDb.query(STATS_TABLE, null, "name=?", new String[] { type.name() }, null, null, null);
+        try {
+            if (!cursor.moveToFirst()) {
+                return new RunningStatistics(type);
+            }
+            return new RunningStatistics(type, cursor.getLong(cursor.getColumnIndexOrThrow("count")), cursor.getFloat(cursor
+                    .getColumnIndexOrThrow("minValue")), cursor.getFloat(cursor.getColumnIndexOrThrow("maxValue")), cursor.getLong(cursor
+                    .getColumnIndexOrThrow("firstDate")), cursor.getFloat(cursor.getColumnIndexOrThrow("firstValue")), cursor.getLong(cursor
+                    .getColumnIndexOrThrow("lastDate")), cursor.getFloat(cursor.getColumnIndexOrThrow("lastValue")), cursor.getDouble(cursor
+                    .getColumnIndexOrThrow("mean")), cursor.getDouble(cursor.getColumnIndexOrThrow("m2")));
+        } finally {
+            cursor.close();
+        }
     }
 
     public int deleteAll() {
-        return this.mDb.delete(WEIGHT_TABLE, null, null);
+        return awaitWrite(true, new Callable<Integer>() {
+
+            public Integer call() {
+                return removeAll();
+            }
+        });
+    }
+
+    public void deleteAll(final WriteCallback<Integer> callback) {
+        submitWrite(true, new Callable<Integer>() {
+
+            public Integer call() {
+                return removeAll();
+            }
+        }, callback);
+    }
+
+    /**
+     * @return sequence number of the newest journal entry, 0 if there is none
+     */
+    public long fetchJournalEnd() {
+        return DatabaseUtils.longForQuery(this.mDb, JOURNAL_END, null);
+    }
+
+    /**
+     * @return sequence number up to which the named reader has seen the journal, 0 if it never did
+     */
+    public long fetchWatermark(final String name) {
+        return DatabaseUtils.longForQuery(this.mDb, MARK_SELECT, new String[] { name });
+    }
+
+    /**
+     * Return a Cursor over the measures changed after the first up to the second sequence number, one row per measure
+     * with its last operation. The measure columns are null for measures that no longer exist.
+     */
+    public Cursor fetchChanges(final long after, final long upTo) {
+        Log.d(TAG, "fetchChanges " + after + " - " + upTo);
+        return this.mDb.rawQuery(JOURNAL_CHANGES, new String[] { String.valueOf(after), String.valueOf(upTo) });
+    }
+
+    /**
+     * Moves the watermark of the named reader and compacts the journal.
+     */
+    public void markRead(final String name, final long seq) {
+        awaitWrite(false, new Callable<Void>() {
+
+            public Void call() {
+                beginTransaction();
+                try {
+                    final SQLiteStatement replace = compiled(MARK_REPLACE);
+                    synchronized (replace) {
+                        replace.bindString(1, name);
+                        replace.bindLong(2, seq);
+                        replace.execute();
+                    }
+                    compactJournal();
+                    SqliteHelper.this.mDb.setTransactionSuccessful();
+                } finally {
+                    SqliteHelper.this.mDb.endTransaction();
+                }
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Drops the journal entries all readers have seen and folds the remaining ones to the last entry per measure.
+     */
+    private void compactJournal() {
+        final long dropped = executeUpdateDelete(compiled(JOURNAL_DROP_READ));
+        final long folded = executeUpdateDelete(compiled(JOURNAL_FOLD));
+        Log.d(TAG, "compactJournal dropped " + dropped + ", folded " + folded);
+    }
+
+    /**
+     * Copies the database file. The copy runs on the writer thread, so no write can start in between, after the write
+     * ahead log has been folded into the file.
+     * 
+     * @return the number of bytes copied
+     */
+    public long saveSnapshot(final File snapshot) {
+        return awaitWrite(false, new Callable<Long>() {
+
+            public Long call() {
+                checkpoint();
+                try {
+                    return SqliteSnapshot.transfer(SqliteHelper.this.mCtx.getDatabasePath(DATABASE_NAME), snapshot);
+                } catch (final IOException e) {
+                    throw new MeasurementException(ErrorId.EXPORT_FILECREATION, e.getLocalizedMessage());
+                }
+            }
+        });
+    }
+
+    /**
+     * Stages a snapshot to replace the database. The snapshot is copied next to the database and checked there, a damaged
+     * snapshot is deleted and leaves the current data alone. The database itself is not touched while this helper is in
+     * use: loaders, the chart and the list read it on other threads without a lock. The staged copy replaces it in
+     * {@link #open()}, the next time the database is opened after every reference was given back, and snapshots of older
+     * versions are upgraded then.
+     * 
+     * @return the number of bytes copied
+     */
+    public long restoreSnapshot(final File snapshot) {
+        final File staged = stagedRestore(this.mCtx);
+        // only a checked copy gets the name open() looks for
+        final File candidate = new File(staged.getPath() + ".tmp");
+        final long bytes;
+        try {
+            bytes = SqliteSnapshot.transfer(snapshot, candidate);
+            checkSnapshot(candidate);
+        } catch (final IOException e) {
+            candidate.delete();
+            throw new MeasurementException(ErrorId.EXPORT_READFILE, e.getLocalizedMessage());
+        } catch (final RuntimeException e) {
+            candidate.delete();
+            throw e;
+        }
+        if (!candidate.renameTo(staged)) {
+            candidate.delete();
+            throw new MeasurementException(ErrorId.DATABASE_ERROR, "rename failed");
+        }
+        return bytes;
+    }
+
+    private static File stagedRestore(final Context ctx) {
+        return new File(ctx.getDatabasePath(DATABASE_NAME).getParentFile(), DATABASE_NAME + ".restore");
+    }
+
+    /**
+     * Moves a staged snapshot over the database. Only called from {@link #open()}, which runs while no other helper is open.
+     */
+    private void applyStagedRestore() {
+        final File staged = stagedRestore(this.mCtx);
+        if (!staged.exists()) {
+            return;
+        }
+        final File database = this.mCtx.getDatabasePath(DATABASE_NAME);
+        // the log and journal belong to the old file and must not be applied to the new one
+        new File(database.getPath() + "-wal").delete();
+        new File(database.getPath() + "-shm").delete();
+        new File(database.getPath() + "-journal").delete();
+        if (staged.renameTo(database)) {
+            Log.i(TAG, "restored snapshot");
+        } else {
+            Log.e(TAG, "could not move the restored snapshot over the database");
+        }
+    }
+
+    /**
+     * Applies a staged snapshot when the app starts. A reference that was never given back keeps the helper open, so the
+     * snapshot would wait for a close that never comes. Called before the main screen opens the database, when no other
+     * screen uses it, it closes such a helper whatever its references and opens the database again.
+     * 
+     * @return true if a snapshot is still staged because it could not be moved over the database
+     */
+    public static boolean applyPendingRestore(final Context ctx) {
+        synchronized (SqliteHelper.class) {
+            if (!stagedRestore(ctx).exists()) {
+                return false;
+            }
+            if (instance != null && instance.open) {
+                Log.w(TAG, "closing " + instance.references + " references that were never given back to restore the snapshot");
+                instance.references = 1;
+                instance.close();
+            }
+            getInstance(ctx).close();
+            return stagedRestore(ctx).exists();
+        }
+    }
+
+    /**
+     * Folds the write ahead log into the database file, retrying while readers still need older pages. Runs on the writer
+     * thread only.
+     */
+    private void checkpoint() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB) {
+            return; // no write ahead log, the file is complete while no write runs
+        }
+        final String sql = Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN ? WAL_CHECKPOINT_FULL : WAL_CHECKPOINT;
+        for (int attempt = 0; attempt < CHECKPOINT_ATTEMPTS; attempt++) {
+            final Cursor cursor = this.mDb.rawQuery(sql, null);
+            try {
+                // journal modes other than wal report -1 frames
+                if (!cursor.moveToFirst() || cursor.getInt(0) == 0 && cursor.getLong(1) == cursor.getLong(2)) {
+                    return;
+                }
+            } finally {
+                cursor.close();
+            }
+            SystemClock.sleep(50);
+        }
+        throw new MeasurementException(ErrorId.DATABASE_ERROR, "checkpoint blocked");
+    }
+
+    /**
+     * Opens the file on its own and lets sqlite check every page and index.
+     */
+    private static void checkSnapshot(final File file) {
+        final SQLiteDatabase db;
+        try {
+            db = SQLiteDatabase.openDatabase(file.getPath(), null, SQLiteDatabase.OPEN_READWRITE);
+        } catch (final SQLException e) {
+            throw new MeasurementException(ErrorId.EXPORT_READFILE, e.getLocalizedMessage());
+        }
+        try {
+            // an empty database has version 0, a newer one cannot be downgraded
+            if (db.getVersion() < 1 || db.getVersion() > DATABASE_VERSION) {
+                throw new MeasurementException(ErrorId.DATABASE_ERROR, "snapshot version " + db.getVersion());
+            }
+            final String result = DatabaseUtils.stringForQuery(db, INTEGRITY_CHECK, null);
+            if (!"ok".equals(result)) {
+                throw new MeasurementException(ErrorId.DATABASE_ERROR, result);
+            }
+            checkSnapshotColumns(db);
+        } finally {
+            db.close();
+        }
+    }
+
+    /**
+     * Makes sure the file is a database of this app: the measure table has to exist with the columns of the snapshot's
+     * version, name came with version 8 and comment with version 11.
+     */
+    private static void checkSnapshotColumns(final SQLiteDatabase db) {
+        final Set<String> columns = new HashSet<String>();
+        final Cursor cursor = db.rawQuery(TABLE_INFO + WEIGHT_TABLE + ")", null);
+        try {
+            final int nameColumn = cursor.getColumnIndexOrThrow("name");
+            while (cursor.moveToNext()) {
+                columns.add(cursor.getString(nameColumn));
+            }
+        } finally {
+            cursor.close();
+        }
+        final List<String> required = new ArrayList<String>();
+        Collections.addAll(required, KEY_ROWID, KEY_MEASURE_VALUE, KEY_DATE);
+        if (db.getVersion() >= 8) {
+            required.add(KEY_NAME);
+        }
+        if (db.getVersion() >= 11) {
+            required.add(KEY_COMMENT);
+        }
+        if (!columns.containsAll(required)) {
+            throw new MeasurementException(ErrorId.DATABASE_ERROR, "no " + WEIGHT_TABLE + " with " + required);
+        }
     }
 
     public boolean isEmptyWeight() {
-        return fetchFirst(MeasureType.WEIGHT).getCount() == 0;
+        return fetchStatistics(MeasureType.WEIGHT).isEmpty();
     }
 
     /**
@@ -288,7 +1492,36 @@ public class SqliteHelper {
     public Cursor fetchAll(final MeasureType fieldName) {
         Log.d(TAG, "fetchAllMeasures " + fieldName);
         final String[] selectionArgs = { fieldName.name() };
-        return this.mDb.query(WEIGHT_TABLE, null, "name=?", selectionArgs, null, null, "measure_date DESC");
+        return this.mDb.rawQuery(MEASURE_WITH_PREVIOUS + MEASURE_ORDER, selectionArgs);
+    }
+
+    /**
+     * Returns the newest measures of a type in the order and with the columns of {@link #fetchAll(MeasureType)}.
+     * 
+     * @param limit
+     *            maximum number of rows
+     */
+    public Cursor fetchPage(final MeasureType type, final int limit) {
+        Log.d(TAG, "fetchPage " + type);
+        final String[] selectionArgs = { type.name() };
+        return this.mDb.rawQuery(MEASURE_WITH_PREVIOUS + MEASURE_ORDER + " limit " + limit, selectionArgs);
+    }
+
+    /**
+     * Returns the measures following the given row of a previous page. The page is found on the index from the date and
+     * id of that row, however many rows come before it.
+     * 
+     * @param date
+     *            date of the last row of the previous page
+     * @param rowId
+     *            id of the last row of the previous page
+     * @param limit
+     *            maximum number of rows
+     */
+    public Cursor fetchPage(final MeasureType type, final long date, final long rowId, final int limit) {
+        Log.d(TAG, "fetchPage " + type + " after " + date + "/" + rowId);
+        final String[] selectionArgs = { type.name(), Long.toString(date), Long.toString(date), Long.toString(rowId) };
+        return this.mDb.rawQuery(MEASURE_WITH_PREVIOUS + MEASURE_AFTER_KEY + MEASURE_ORDER + " limit " + limit, selectionArgs);
     }
 
     public Cursor fetchByName(final String name) {
@@ -311,6 +1544,14 @@ public class SqliteHelper {
         return this.mDb.query(WEIGHT_TABLE, null, null, null, null, null, null);
     }
 
+    /**
+     * All measures ordered by type and date, read along the name and date index.
+     */
+    public Cursor fetchAllByType() {
+        Log.d(TAG, "fetchAllByType");
+        return this.mDb.query(WEIGHT_TABLE, null, null, null, null, null, KEY_NAME + ", " + KEY_DATE);
+    }
+
     public Cursor fetchTypes() {
         Log.d(TAG, "fetchTypes");
         return this.mDb.query(TRACKING_TABLE, null, null, null, null, null, null);
@@ -341,6 +1582,27 @@ public class SqliteHelper {
         return this.mDb.query(WEIGHT_TABLE, null, selection, selectionArgs, null, null, "measure_date ASC");
     }
 
+    /**
+     * Fetches date and value of several types in one query, ordered by type and date. The column {@link #KEY_TYPE_INDEX}
+     * tells which of the given types a row belongs to.
+     */
+    public Cursor fetchValuesOnlyByDate(final Date dateAfter, final List<MeasureType> types) {
+        final StringBuilder typeIndex = new StringBuilder("case name");
+        final StringBuilder in = new StringBuilder();
+        final String[] selectionArgs = new String[2 * types.size() + 1];
+        for (int i = 0; i < types.size(); i++) {
+            typeIndex.append(" when ? then ").append(i);
+            in.append(i > 0 ? ", ?" : "?");
+            selectionArgs[i] = types.get(i).name();
+            selectionArgs[types.size() + 1 + i] = types.get(i).name();
+        }
+        typeIndex.append(" end");
+        selectionArgs[types.size()] = Long.toString(dateAfter.getTime());
+        final String sql = "select " + KEY_DATE + ", " + KEY_MEASURE_VALUE + ", " + typeIndex + " as " + KEY_TYPE_INDEX + " from " + WEIGHT_TABLE
+                + " where measure_date > ? and name in (" + in + ") order by name, measure_date ASC";
+        return this.mDb.rawQuery(sql, selectionArgs);
+    }
+
     public Cursor fetchCommentsOnly() {
         final String[] columns = { KEY_ROWID, KEY_COMMENT };
         final String selection = "comment is not null";
@@ -20,6 +20,7 @@ import android.app.AlertDialog;
 import android.content.DialogInterface;
 import de.delusions.measure.MeasureActivity;
 import de.delusions.measure.R;
+import de.delusions.measure.ment.MeasurementException;
 
 public class SqliteManagement {
 
@@ -30,11 +31,42 @@ public class SqliteManagement {
         builder.setPositiveButton(R.string.yes, new DialogInterface.OnClickListener() {
 
             public void onClick(final DialogInterface dialog, final int id) {
-                final SqliteHelper db = new SqliteHelper(a);
-                db.deleteAll();
+                final SqliteHelper db = SqliteHelper.getInstance(a);
+                db.deleteAll(new SqliteHelper.WriteCallback<Integer>() {
+
+                    public void onWriteDone(final Integer deleted) {
+                        if (a instanceof MeasureActivity) {
+                            ((MeasureActivity) a).refreshListView();
+                        }
+                    }
+
+                    public void onWriteFailed(final MeasurementException error) {
+                        error.createToast(a, "deleteAll");
+                    }
+                });
                 db.close();
-                if (a instanceof MeasureActivity) {
-                    ((MeasureActivity) a).refreshListView();
+            }
+        });
+        builder.setNegativeButton(R.string.no, new DialogInterface.OnClickListener() {
+
+            public void onClick(final DialogInterface dialog, final int id) {
+                dialog.cancel();
+            }
+        });
+        return builder.create();
+    }
+
+    public static AlertDialog restoreSnapshot(final Activity a) {
+        final AlertDialog.Builder builder = new AlertDialog.Builder(a);
+        builder.setMessage(R.string.dialog_message_restore);
+        builder.setCancelable(false);
+        builder.setPositiveButton(R.string.yes, new DialogInterface.OnClickListener() {
+
+            public void onClick(final DialogInterface dialog, final int id) {
+                try {
+                    new SqliteSnapshot(a, true).execute();
+                } catch (final MeasurementException e) {
+                    e.createToast(a, "restore snapshot");
                 }
             }
         });
@@ -0,0 +1,129 @@
+/*
+   Copyright 2013 Sonja Pieper
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package de.delusions.measure.database;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+
+import android.app.Activity;
+import android.app.ProgressDialog;
+import android.os.AsyncTask;
+import android.util.Log;
+import android.widget.Toast;
+import de.delusions.measure.R;
+import de.delusions.measure.ment.MeasurementException;
+
+/**
+ * Saves or restores a copy of the database file itself. Unlike {@link SqliteExport} no row is read, the file is copied by
+ * the channel, which lets the kernel move the bytes without passing them through the java heap.
+ */
+public class SqliteSnapshot extends AsyncTask<Void, Void, Long> {
+
+    private static final String TAG = SqliteSnapshot.class.getSimpleName();
+
+    static final String SNAPSHOT_FILE_NAME = "data.db";
+
+    private final Activity a;
+    private final boolean restore;
+    private final SqliteHelper db;
+    private final File snapshotFile;
+    private final ProgressDialog dialog;
+    private long startedAt;
+    private MeasurementException error;
+
+    public SqliteSnapshot(final Activity a, final boolean restore) throws MeasurementException {
+        this.a = a;
+        this.restore = restore;
+        this.snapshotFile = new File(SqliteExport.getSDPath(), SNAPSHOT_FILE_NAME);
+        if (restore && !this.snapshotFile.exists()) {
+            throw new MeasurementException(MeasurementException.ErrorId.EXPORT_FILEMISSING);
+        }
+        this.db = SqliteHelper.getInstance(a);
+        this.dialog = new ProgressDialog(a);
+    }
+
+    @Override
+    protected void onPreExecute() {
+        this.startedAt = System.nanoTime();
+        this.dialog.setMessage(this.a.getString(R.string.snapshot_dialog_message));
+        this.dialog.show();
+    }
+
+    @Override
+    protected Long doInBackground(final Void... params) {
+        try {
+            return this.restore ? this.db.restoreSnapshot(this.snapshotFile) : this.db.saveSnapshot(this.snapshotFile);
+        } catch (final MeasurementException e) {
+            this.error = e;
+            return -1l;
+        } finally {
+            this.db.close();
+        }
+    }
+
+    @Override
+    protected void onPostExecute(final Long bytes) {
+        if (this.dialog.isShowing()) {
+            this.dialog.dismiss();
+        }
+        if (this.error != null) {
+            this.error.createToast(this.a, this.restore ? "restore snapshot" : "save snapshot");
+            return;
+        }
+        final long nanos = Math.max(1, System.nanoTime() - this.startedAt);
+        final long kbPerSecond = bytes * 1000000000L / nanos / 1024;
+        Log.d(TAG, (this.restore ? "restored " : "saved ") + bytes + " bytes in " + nanos / 1000000 + "ms");
+        Toast.makeText(this.a,
+                String.format(this.a.getString(this.restore ? R.string.snapshot_toast_restored : R.string.snapshot_toast_saved), bytes / 1024, kbPerSecond),
+                this.restore ? Toast.LENGTH_LONG : Toast.LENGTH_SHORT).show();
+        if (this.restore) {
+            // the snapshot replaces the database when it is opened again, which needs every screen using it closed
+            final Activity root = this.a.getParent() != null ? this.a.getParent() : this.a;
+            root.finish();
+        }
+    }
+
+    /**
+     * Copies the file with {@link FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)}, which may
+     * move fewer bytes than asked for, and forces the copy to the disk.
+     * 
+     * @return the number of bytes copied
+     */
+    static long transfer(final File from, final File to) throws IOException {
+        final FileInputStream in = new FileInputStream(from);
+        try {
+            final FileOutputStream out = new FileOutputStream(to);
+            try {
+                final FileChannel source = in.getChannel();
+                final FileChannel target = out.getChannel();
+                final long size = source.size();
+                long position = 0;
+                while (position < size) {
+                    position += source.transferTo(position, size - position, target);
+                }
+                target.force(true);
+                return size;
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -240,7 +240,7 @@ public class MeasureType implements Serializable {
     }
 
     private static void refreshFromDatabase(final Context ctx) {
-        final SqliteHelper db = new SqliteHelper(ctx);
+        final SqliteHelper db = SqliteHelper.getInstance(ctx);
         Cursor cursor = null;
         try {
             cursor = db.fetchTypes();
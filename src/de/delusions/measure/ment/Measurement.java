@@ -47,14 +47,22 @@ public class Measurement implements Serializable {
         if (strValue == null || strValue.equals("")) {
             throw new MeasurementException(MeasurementException.ErrorId.NOINPUT);
         }
+        final float parsed;
         try {
-            this.value = parseValue(strValue);
+            parsed = parseValue(strValue);
         } catch (final ParseException e) {
             throw new MeasurementException(MeasurementException.ErrorId.NONUMBER);
         } catch (final NumberFormatException e) {
             throw new MeasurementException(MeasurementException.ErrorId.PARSEERROR);
         }
-        this.value = metric ? this.value : getUnit().convertToMetric(this.value);
+        setAndCheckValue(parsed, metric);
+    }
+
+    /**
+     * Sets the value like {@link #setValue(float, boolean)} and checks it against the limits of the type.
+     */
+    public void setAndCheckValue(final float value, final boolean metric) throws MeasurementException {
+        this.value = metric ? value : getUnit().convertToMetric(value);
         if (this.value < 0) {
             throw new MeasurementException(MeasurementException.ErrorId.SUBZERO);
         } else if (this.value > this.field.getMaxValue()) {
@@ -137,7 +145,11 @@ public class Measurement implements Serializable {
     }
 
     public float getPercentDifference(final Measurement measurement) {
-        return 100 - 100 * measurement.getValue() / this.value;
+        return getPercentDifference(this.value, measurement.getValue());
+    }
+
+    public static float getPercentDifference(final float value, final float other) {
+        return 100 - 100 * other / value;
     }
 
     public String prettyPrint(final Context ctx) {
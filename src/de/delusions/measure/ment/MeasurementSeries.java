@@ -0,0 +1,218 @@
+/*
+   Copyright 2013 Sonja Pieper
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package de.delusions.measure.ment;
+
+import android.database.Cursor;
+import de.delusions.measure.database.SqliteHelper;
+
+/**
+ * Timestamps and metric values of one measure type ordered by date, kept in two parallel primitive arrays so that long
+ * histories can be read and drawn without creating a {@link Measurement} per row. Ranges are given as index from inclusive
+ * and index to exclusive.
+ */
+public class MeasurementSeries {
+
+    private static final int DEFAULT_CAPACITY = 16;
+
+    private final MeasureType type;
+    private long[] timestamps;
+    private float[] values;
+    private int size;
+
+    public MeasurementSeries(final MeasureType type) {
+        this(type, DEFAULT_CAPACITY);
+    }
+
+    public MeasurementSeries(final MeasureType type, final int capacity) {
+        this.type = type;
+        this.timestamps = new long[Math.max(1, capacity)];
+        this.values = new float[Math.max(1, capacity)];
+    }
+
+    /**
+     * Replaces the content with all rows of the cursor. The cursor has to be ordered by date ascending and contain the
+     * date and value columns, it is read from its first row on.
+     */
+    public void fill(final Cursor cursor) {
+        clear();
+        ensureCapacity(cursor.getCount());
+        final int dateColumn = cursor.getColumnIndexOrThrow(SqliteHelper.KEY_DATE);
+        final int valueColumn = cursor.getColumnIndexOrThrow(SqliteHelper.KEY_MEASURE_VALUE);
+        cursor.moveToPosition(-1);
+        while (cursor.moveToNext()) {
+            add(cursor.getLong(dateColumn), cursor.getFloat(valueColumn));
+        }
+    }
+
+    /**
+     * Splits a cursor holding several types into one series per type in a single pass. The cursor needs the column
+     * {@link SqliteHelper#KEY_TYPE_INDEX} pointing into the series array and has to be ordered by date within each type.
+     */
+    public static void fill(final Cursor cursor, final MeasurementSeries[] series) {
+        for (final MeasurementSeries s : series) {
+            s.clear();
+        }
+        final int dateColumn = cursor.getColumnIndexOrThrow(SqliteHelper.KEY_DATE);
+        final int valueColumn = cursor.getColumnIndexOrThrow(SqliteHelper.KEY_MEASURE_VALUE);
+        final int typeColumn = cursor.getColumnIndexOrThrow(SqliteHelper.KEY_TYPE_INDEX);
+        cursor.moveToPosition(-1);
+        while (cursor.moveToNext()) {
+            series[cursor.getInt(typeColumn)].add(cursor.getLong(dateColumn), cursor.getFloat(valueColumn));
+        }
+    }
+
+    public void add(final long timestamp, final float metricValue) {
+        ensureCapacity(this.size + 1);
+        this.timestamps[this.size] = timestamp;
+        this.values[this.size] = metricValue;
+        this.size++;
+    }
+
+    public void clear() {
+        this.size = 0;
+    }
+
+    public int size() {
+        return this.size;
+    }
+
+    public boolean isEmpty() {
+        return this.size == 0;
+    }
+
+    public MeasureType getType() {
+        return this.type;
+    }
+
+    public long getTimestamp(final int index) {
+        return this.timestamps[index];
+    }
+
+    public float getValue(final int index) {
+        return this.values[index];
+    }
+
+    public float getValue(final int index, final boolean metric) {
+        return metric ? this.values[index] : this.type.getUnit().convertToImperial(this.values[index]);
+    }
+
+    /**
+     * @return index of the first entry at or after the timestamp, {@link #size()} if there is none
+     */
+    public int indexOf(final long timestamp) {
+        int low = 0;
+        int high = this.size;
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            if (this.timestamps[mid] < timestamp) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * @return smallest value in the range, Float.NaN if the range is empty
+     */
+    public float min(final int from, final int to, final boolean metric) {
+        if (from >= to) {
+            return Float.NaN;
+        }
+        float min = this.values[from];
+        for (int i = from + 1; i < to; i++) {
+            min = Math.min(min, this.values[i]);
+        }
+        return metric ? min : this.type.getUnit().convertToImperial(min);
+    }
+
+    /**
+     * @return largest value in the range, Float.NaN if the range is empty
+     */
+    public float max(final int from, final int to, final boolean metric) {
+        if (from >= to) {
+            return Float.NaN;
+        }
+        float max = this.values[from];
+        for (int i = from + 1; i < to; i++) {
+            max = Math.max(max, this.values[i]);
+        }
+        return metric ? max : this.type.getUnit().convertToImperial(max);
+    }
+
+    public float min(final boolean metric) {
+        return min(0, this.size, metric);
+    }
+
+    public float max(final boolean metric) {
+        return max(0, this.size, metric);
+    }
+
+    /**
+     * Reduces the series to at most two entries per bucket, the smallest and the largest value in their original order, so
+     * the extremes survive while the number of entries is bounded by twice the number of buckets. The buckets split the time
+     * between start and end evenly, entries outside fall into the first or last bucket.
+     * 
+     * @param target
+     *            receives the result, its previous content is dropped
+     */
+    public void downsample(final MeasurementSeries target, final long start, final long end, final int buckets) {
+        target.clear();
+        target.ensureCapacity(Math.min(this.size, 2 * buckets));
+        int i = 0;
+        while (i < this.size) {
+            final int bucket = bucketOf(this.timestamps[i], start, end, buckets);
+            int minIndex = i;
+            int maxIndex = i;
+            int j = i + 1;
+            while (j < this.size && bucketOf(this.timestamps[j], start, end, buckets) == bucket) {
+                if (this.values[j] < this.values[minIndex]) {
+                    minIndex = j;
+                }
+                if (this.values[j] > this.values[maxIndex]) {
+                    maxIndex = j;
+                }
+                j++;
+            }
+            final int first = Math.min(minIndex, maxIndex);
+            final int second = Math.max(minIndex, maxIndex);
+            target.add(this.timestamps[first], this.values[first]);
+            if (second != first) {
+                target.add(this.timestamps[second], this.values[second]);
+            }
+            i = j;
+        }
+    }
+
+    private static int bucketOf(final long timestamp, final long start, final long end, final int buckets) {
+        final long span = Math.max(1, end - start);
+        final long bucket = (timestamp - start) * buckets / span;
+        return (int) Math.max(0, Math.min(buckets - 1, bucket));
+    }
+
+    private void ensureCapacity(final int capacity) {
+        if (capacity > this.timestamps.length) {
+            final int newCapacity = Math.max(capacity, this.timestamps.length * 2);
+            final long[] newTimestamps = new long[newCapacity];
+            final float[] newValues = new float[newCapacity];
+            System.arraycopy(this.timestamps, 0, newTimestamps, 0, this.size);
+            System.arraycopy(this.values, 0, newValues, 0, this.size);
+            this.timestamps = newTimestamps;
+            this.values = newValues;
+        }
+    }
+}
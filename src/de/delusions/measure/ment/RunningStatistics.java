@@ -0,0 +1,185 @@
+/*
+   Copyright 2013 Sonja Pieper
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package de.delusions.measure.ment;
+
+import java.util.Date;
+
+/**
+ * Count, extremes, first and last entry, mean and variance of all measures of one type. Kept up to date entry by entry
+ * with Welford's method so the statistics never have to be computed from all rows. Values are metric.
+ */
+public class RunningStatistics {
+
+    private final MeasureType type;
+    private long count;
+    private float min;
+    private float max;
+    private long firstDate;
+    private float firstValue;
+    private long lastDate;
+    private float lastValue;
+    private double mean;
+    private double m2;
+    private boolean stale;
+
+    public RunningStatistics(final MeasureType type) {
+        this.type = type;
+    }
+
+    public RunningStatistics(final MeasureType type, final long count, final float min, final float max, final long firstDate,
+            final float firstValue, final long lastDate, final float lastValue, final double mean, final double m2) {
+        this.type = type;
+        this.count = count;
+        this.min = min;
+        this.max = max;
+        this.firstDate = firstDate;
+        this.firstValue = firstValue;
+        this.lastDate = lastDate;
+        this.lastValue = lastValue;
+        this.mean = mean;
+        this.m2 = m2;
+    }
+
+    public void add(final long date, final float value) {
+        if (this.count == 0) {
+            this.min = value;
+            this.max = value;
+            this.firstDate = date;
+            this.firstValue = value;
+            this.lastDate = date;
+            this.lastValue = value;
+        } else {
+            this.min = Math.min(this.min, value);
+            this.max = Math.max(this.max, value);
+            if (date < this.firstDate) {
+                this.firstDate = date;
+                this.firstValue = value;
+            }
+            if (date >= this.lastDate) {
+                this.lastDate = date;
+                this.lastValue = value;
+            }
+        }
+        this.count++;
+        final double delta = value - this.mean;
+        this.mean += delta / this.count;
+        this.m2 += delta * (value - this.mean);
+    }
+
+    /**
+     * Takes an entry back out. Mean and variance can be reversed, but if the entry was an extreme or the first or last one
+     * its replacement is unknown and the statistics are marked as stale.
+     */
+    public void remove(final long date, final float value) {
+        if (this.count <= 1) {
+            this.count = 0;
+            this.mean = 0;
+            this.m2 = 0;
+            return;
+        }
+        if (value <= this.min || value >= this.max || date <= this.firstDate || date >= this.lastDate) {
+            this.stale = true;
+        }
+        final double oldMean = this.mean;
+        this.count--;
+        this.mean = (oldMean * (this.count + 1) - value) / this.count;
+        this.m2 = Math.max(0, this.m2 - (value - oldMean) * (value - this.mean));
+    }
+
+    /**
+     * @return true if an entry was removed that the statistics cannot recover from, they have to be rebuilt from all rows
+     */
+    public boolean isStale() {
+        return this.stale;
+    }
+
+    public MeasureType getType() {
+        return this.type;
+    }
+
+    public long getCount() {
+        return this.count;
+    }
+
+    public boolean isEmpty() {
+        return this.count == 0;
+    }
+
+    public float getMin() {
+        return this.min;
+    }
+
+    public float getMax() {
+        return this.max;
+    }
+
+    public long getFirstDate() {
+        return this.firstDate;
+    }
+
+    public float getFirstValue() {
+        return this.firstValue;
+    }
+
+    public long getLastDate() {
+        return this.lastDate;
+    }
+
+    public float getLastValue() {
+        return this.lastValue;
+    }
+
+    public double getMean() {
+        return this.mean;
+    }
+
+    /**
+     * @return sum of squared differences from the mean, what Welford's method keeps instead of the variance
+     */
+    public double getM2() {
+        return this.m2;
+    }
+
+    public double getVariance() {
+        return this.count > 1 ? this.m2 / (this.count - 1) : 0;
+    }
+
+    public Measurement getFirst() {
+        return createMeasurement(this.firstDate, this.firstValue);
+    }
+
+    public Measurement getLast() {
+        return createMeasurement(this.lastDate, this.lastValue);
+    }
+
+    private Measurement createMeasurement(final long date, final float value) {
+        final Measurement measurement = new Measurement();
+        measurement.setField(this.type);
+        if (!isEmpty()) {
+            measurement.setValue(value, true);
+            measurement.setTimestamp(new Date(date));
+        }
+        return measurement;
+    }
+
+    @Override
+    public String toString() {
+        final StringBuffer buffer = new StringBuffer();
+        buffer.append("RunningStatistics[").append(this.type != null ? this.type.name() : "").append(",").append(this.count).append(",")
+                .append(this.min).append("-").append(this.max).append(",").append(this.mean).append("]");
+        return buffer.toString();
+    }
+}
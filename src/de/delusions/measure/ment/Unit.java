@@ -47,11 +47,11 @@ public enum Unit {
         return NumberFormat.getInstance(Locale.ENGLISH).format(convertToImperial(metricNumber));
     }
 
-    public Float convertToImperial(final Float metricNumber) {
+    public float convertToImperial(final float metricNumber) {
         return metricNumber * this.toImperialMultiplier;
     }
 
-    public Float convertToMetric(final Float imperialNumber) {
+    public float convertToMetric(final float imperialNumber) {
         return imperialNumber / this.toImperialMultiplier;
     }
 
@@ -66,6 +66,10 @@ public enum Unit {
     }
 
     public String retrieveUnitName(final Context context) {
-        return UserPreferences.isMetric(context) ? this.metricUnit : this.imperialUnit;
+        return retrieveUnitName(UserPreferences.isMetric(context));
+    }
+
+    public String retrieveUnitName(final boolean metric) {
+        return metric ? this.metricUnit : this.imperialUnit;
     }
 }